@@ -1,15 +1,26 @@
 package ibis.server;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.log4j.Logger;
 
 import ibis.smartsockets.SmartSocketsProperties;
 import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.hub.servicelink.ServiceLink;
 import ibis.smartsockets.virtual.InitializationException;
+import ibis.smartsockets.virtual.VirtualSocket;
 import ibis.smartsockets.virtual.VirtualSocketAddress;
 import ibis.smartsockets.virtual.VirtualSocketFactory;
 import ibis.util.TypedProperties;
@@ -22,14 +33,156 @@ public class Client {
 
     private static final Logger logger = Logger.getLogger(Client.class);
 
-    private static VirtualSocketFactory defaultFactory = null;
+    private static FactoryTask defaultFactory = null;
 
-    private static Map<String, VirtualSocketFactory> factories = new HashMap<String, VirtualSocketFactory>();
+    private static Map<String, FactoryTask> factories = new HashMap<String, FactoryTask>();
+
+    private static Map<String, HubAddressFile> hubAddressFiles = new HashMap<String, HubAddressFile>();
+
+    private static ExecutorService executor = null;
+
+    private static Map<String, ServerSelector> selectors = new HashMap<String, ServerSelector>();
+
+    // measures latency to hubs, to give new factories the nearest hub first
+    private static HubProber hubProber = null;
+
+    private static Map<VirtualSocketFactory, ConnectionPool> pools = new IdentityHashMap<VirtualSocketFactory, ConnectionPool>();
 
     private Client() {
         // DO NOT USE
     }
 
+    /**
+     * Creates a factory, with the given hubs and those in the hub address
+     * file (if any).
+     */
+    private static class FactoryCreator implements
+            Callable<VirtualSocketFactory> {
+
+        private final String hubs;
+
+        private final HubAddressFile hubAddressFile;
+
+        private final HubProber hubProber;
+
+        // set if the factory was created without any hubs
+        private volatile boolean withoutHubs = false;
+
+        FactoryCreator(String hubs, HubAddressFile hubAddressFile,
+                HubProber hubProber) {
+            this.hubs = hubs;
+            this.hubAddressFile = hubAddressFile;
+            this.hubProber = hubProber;
+        }
+
+        public VirtualSocketFactory call() throws IOException {
+            String allHubs = hubs;
+            if (hubAddressFile != null) {
+                allHubs = concat(allHubs, hubAddressFile.getHubs());
+            }
+            if (hubProber != null) {
+                allHubs = hubProber.order(allHubs);
+            }
+
+            Properties smartProperties = new Properties();
+            smartProperties.put(SmartSocketsProperties.DISCOVERY_ALLOWED,
+                    "false");
+            if (allHubs != null) {
+                smartProperties.put(SmartSocketsProperties.HUB_ADDRESSES,
+                        allHubs);
+            }
+            withoutHubs = allHubs == null || allHubs.equals("");
+
+            VirtualSocketFactory result;
+            try {
+                result = VirtualSocketFactory.createSocketFactory(
+                        smartProperties, true);
+            } catch (InitializationException e) {
+                throw new IOException(e.getMessage());
+            }
+
+            if (hubAddressFile != null) {
+                hubAddressFile.register(result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Creates a factory in the background. Forgets about the factory if
+     * creating it fails, so the next request tries again.
+     */
+    private static class FactoryTask extends FutureTask<VirtualSocketFactory> {
+
+        private final String key;
+
+        private final FactoryCreator creator;
+
+        FactoryTask(String key, FactoryCreator creator) {
+            super(creator);
+            this.key = key;
+            this.creator = creator;
+        }
+
+        /**
+         * Returns true if the factory was created without hubs, as the hub
+         * address file did not list any yet, but the file does now. A new
+         * factory should then be created, so it starts with the hubs.
+         */
+        boolean isStale() {
+            return isDone() && creator.withoutHubs
+                    && creator.hubAddressFile != null
+                    && creator.hubAddressFile.getHubs() != null;
+        }
+
+        protected void done() {
+            try {
+                get();
+            } catch (Throwable e) {
+                forget(this);
+            }
+        }
+    }
+
+    private static synchronized void forget(FactoryTask task) {
+        if (task.key == null) {
+            if (defaultFactory == task) {
+                defaultFactory = null;
+            }
+        } else if (factories.get(task.key) == task) {
+            factories.remove(task.key);
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable,
+                            "client factory creator");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private static VirtualSocketFactory waitFor(
+            Future<VirtualSocketFactory> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(
+                    "interrupted while waiting for factory");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("could not create factory: " + e.getCause());
+        }
+    }
+
     private static DirectSocketAddress createAddressFromString(
             String serverString, int defaultPort) throws ConfigurationException {
 
@@ -58,8 +211,73 @@ public class Client {
                         + serverString, throwable);
     }
 
+    private static DirectSocketAddress[] createAddressesFromString(
+            String serverString, int defaultPort) throws ConfigurationException {
+        String[] strings = serverString.split(",");
+
+        DirectSocketAddress[] result = new DirectSocketAddress[strings.length];
+        for (int i = 0; i < strings.length; i++) {
+            result[i] = createAddressFromString(strings[i].trim(), defaultPort);
+        }
+        return result;
+    }
+
+    private static ServerSelector getSelector(String serverAddressString,
+            TypedProperties typedProperties) throws ConfigurationException {
+        synchronized (Client.class) {
+            ServerSelector selector = selectors.get(serverAddressString);
+            if (selector != null) {
+                return selector;
+            }
+        }
+
+        // resolving the addresses may take a while, do not hold the lock
+        DirectSocketAddress[] servers = createAddressesFromString(
+                serverAddressString, typedProperties
+                        .getIntProperty(ServerProperties.PORT));
+
+        synchronized (Client.class) {
+            ServerSelector selector = selectors.get(serverAddressString);
+            if (selector == null) {
+                // probes in the background
+                selector = new ServerSelector(servers, ServerProperties
+                        .getInterval(typedProperties,
+                                ServerProperties.ADDRESS_PROBE_INTERVAL),
+                        typedProperties
+                                .getIntProperty(ServerProperties.ADDRESS_PROBE_TIMEOUT));
+                selectors.put(serverAddressString, selector);
+            }
+            return selector;
+        }
+    }
+
+    /**
+     * Stops probing the latency of servers, see getServiceAddress(). Probing
+     * starts again on the next call to getServiceAddress() with multiple
+     * servers.
+     */
+    public static synchronized void endServerSelectors() {
+        for (ServerSelector selector : selectors.values()) {
+            selector.end();
+        }
+        selectors.clear();
+    }
+
+    /**
+     * Stops watching hub address files. Watching starts again on the next
+     * call to getFactory() with a hub address file.
+     */
+    public static synchronized void endHubAddressFiles() {
+        for (HubAddressFile hubAddressFile : hubAddressFiles.values()) {
+            hubAddressFile.end();
+        }
+        hubAddressFiles.clear();
+    }
+
     /**
-     * Get the address of a service running on a given port
+     * Get the address of a service running on a given port. If multiple
+     * (equivalent) servers are given, the address of the service at the
+     * server with the lowest latency is returned.
      * 
      * @param port
      *            the port the service is running on
@@ -82,10 +300,17 @@ public class Client {
 
         logger.debug("server address = \"" + serverAddressString + "\"");
 
-        int defaultPort = typedProperties.getIntProperty(ServerProperties.PORT);
+        DirectSocketAddress serverMachine;
+        if (serverAddressString.contains(",")) {
+            serverMachine = getSelector(serverAddressString, typedProperties)
+                    .getServer();
+        } else {
+            int defaultPort = typedProperties
+                    .getIntProperty(ServerProperties.PORT);
 
-        DirectSocketAddress serverMachine = createAddressFromString(
-                serverAddressString, defaultPort);
+            serverMachine = createAddressFromString(serverAddressString,
+                    defaultPort);
+        }
 
         if (serverMachine == null) {
             throw new ConfigurationException("cannot get address of server");
@@ -94,12 +319,8 @@ public class Client {
         return new VirtualSocketAddress(serverMachine, port);
     }
 
-    public static synchronized VirtualSocketFactory getFactory(Properties p)
-            throws ConfigurationException, IOException {
-        TypedProperties typedProperties = ServerProperties
-                .getHardcodedProperties();
-        typedProperties.addProperties(p);
-
+    private static String getHubs(TypedProperties typedProperties)
+            throws ConfigurationException {
         String hubs = typedProperties
                 .getProperty(ServerProperties.HUB_ADDRESSES);
 
@@ -109,53 +330,222 @@ public class Client {
 
         String server = typedProperties.getProperty(ServerProperties.ADDRESS);
         if (server != null && !server.equals("") && serverIsHub) {
-            // add server to hub addresses
-            DirectSocketAddress serverAddress = createAddressFromString(server,
-                    typedProperties.getIntProperty(ServerProperties.PORT));
-            if (hubs == null || hubs.equals("")) {
-                hubs = serverAddress.toString();
-            } else {
-                hubs = hubs + "," + serverAddress.toString();
+            // add server(s) to hub addresses
+            DirectSocketAddress[] serverAddresses = createAddressesFromString(
+                    server, typedProperties
+                            .getIntProperty(ServerProperties.PORT));
+            for (DirectSocketAddress serverAddress : serverAddresses) {
+                hubs = concat(hubs, serverAddress.toString());
             }
         }
 
-        if (hubs == null) {
-            // return the default factory
+        return hubs;
+    }
+
+    private static String concat(String hubs, String moreHubs) {
+        if (hubs == null || hubs.equals("")) {
+            return moreHubs;
+        }
+        if (moreHubs == null || moreHubs.equals("")) {
+            return hubs;
+        }
+        return hubs + "," + moreHubs;
+    }
+
+    private static synchronized HubAddressFile getHubAddressFile(
+            TypedProperties typedProperties) throws ConfigurationException {
+        String fileName = typedProperties
+                .getProperty(ServerProperties.HUB_ADDRESS_FILE);
 
-            if (defaultFactory == null) {
-                Properties smartProperties = new Properties();
-                smartProperties.put(SmartSocketsProperties.DISCOVERY_ALLOWED,
-                        "false");
-                try {
-                    defaultFactory = VirtualSocketFactory.createSocketFactory(
-                            smartProperties, true);
-                } catch (InitializationException e) {
-                    throw new IOException(e.getMessage());
+        if (fileName == null || fileName.equals("")) {
+            return null;
+        }
+
+        HubAddressFile result = hubAddressFiles.get(fileName);
+        if (result == null) {
+            result = new HubAddressFile(fileName, ServerProperties.getInterval(
+                    typedProperties, ServerProperties.HUB_ADDRESS_FILE_INTERVAL));
+            hubAddressFiles.put(fileName, result);
+        }
+        return result;
+    }
+
+    private static synchronized HubProber getHubProber(
+            TypedProperties typedProperties) {
+        long interval = typedProperties
+                .getLongProperty(ServerProperties.HUB_PROBE_INTERVAL);
+        if (interval <= 0) {
+            return null;
+        }
+
+        if (hubProber == null) {
+            hubProber = new HubProber(null, interval, typedProperties
+                    .getIntProperty(ServerProperties.HUB_PROBE_TIMEOUT));
+        }
+        return hubProber;
+    }
+
+    /**
+     * Returns a factory suitable for connecting to the server. The factory is
+     * created in the background if it does not exist yet. If hub probing is
+     * enabled, the hubs are ordered by round trip time, nearest first. If a
+     * hub address file is given, hubs listed in it (now or later) are added
+     * to the factory.
+     */
+    public static Future<VirtualSocketFactory> getFactoryAsync(Properties p)
+            throws ConfigurationException {
+        TypedProperties typedProperties = ServerProperties
+                .getHardcodedProperties();
+        typedProperties.addProperties(p);
+
+        String hubs = getHubs(typedProperties);
+
+        HubAddressFile hubAddressFile = getHubAddressFile(typedProperties);
+
+        // hubs in the file may change, so key on the name of the file
+        String key = hubs;
+        if (hubAddressFile != null) {
+            key = hubs + "|" + typedProperties
+                    .getProperty(ServerProperties.HUB_ADDRESS_FILE);
+        }
+
+        FactoryTask result;
+        boolean created = false;
+        synchronized (Client.class) {
+            if (key == null) {
+                // the default factory
+                result = defaultFactory;
+                if (result == null) {
+                    result = new FactoryTask(null, new FactoryCreator(null,
+                            null, null));
+                    defaultFactory = result;
+                    created = true;
+                }
+            } else {
+                // a factory for the specified "hubs" string and/or file
+                result = factories.get(key);
+                if (result == null || result.isStale()) {
+                    result = new FactoryTask(key, new FactoryCreator(hubs,
+                            hubAddressFile, getHubProber(typedProperties)));
+                    factories.put(key, result);
+                    created = true;
                 }
             }
-            return defaultFactory;
         }
 
-        VirtualSocketFactory factory = factories.get(hubs);
+        if (created) {
+            getExecutor().execute(result);
+        }
 
-        if (factory == null) {
-            // return a factory for the specified "hubs" string
-            Properties smartProperties = new Properties();
-            smartProperties.put(SmartSocketsProperties.DISCOVERY_ALLOWED,
-                    "false");
-            smartProperties.put(SmartSocketsProperties.HUB_ADDRESSES, hubs);
+        return result;
+    }
 
-            try {
-                factory = VirtualSocketFactory.createSocketFactory(
-                        smartProperties, true);
-            } catch (InitializationException e) {
-                throw new IOException(e.getMessage());
-            }
+    /**
+     * Returns a factory suitable for connecting to the server. Blocks until
+     * the factory has been created.
+     */
+    public static VirtualSocketFactory getFactory(Properties p)
+            throws ConfigurationException, IOException {
+        return waitFor(getFactoryAsync(p));
+    }
 
-            factories.put(hubs, factory);
+    /**
+     * Connects to the given (service) address. If the address belongs to a
+     * server running in this JVM, an in-memory connection is returned, which
+     * does not use the network at all. Otherwise, a connection is created
+     * with the factory returned by getFactory().
+     * 
+     * @param address
+     *            address to connect to, see getServiceAddress()
+     * @param timeout
+     *            timeout for connecting, in milliseconds
+     * @param p
+     *            properties, used to select the factory
+     */
+    public static VirtualSocket createClientSocket(
+            VirtualSocketAddress address, int timeout, Properties p)
+            throws ConfigurationException, IOException {
+        VirtualSocket result = LocalTransport.connect(address, timeout);
+        if (result != null) {
+            return result;
         }
 
-        return factory;
+        return getFactory(p).createClientSocket(address, timeout, null);
+    }
+
+    /**
+     * Creates a factory suitable for connecting to the server in the
+     * background, and waits (also in the background) until it is connected
+     * to its hub. Applications can call this at startup, so the first real
+     * connection does not pay for setting up the factory.
+     * 
+     * @return a future which completes when the factory is connected to its
+     *         hub, or the warm up timeout expires.
+     */
+    public static Future<VirtualSocketFactory> warmUp(Properties p)
+            throws ConfigurationException {
+        TypedProperties typedProperties = ServerProperties
+                .getHardcodedProperties();
+        typedProperties.addProperties(p);
+
+        final Future<VirtualSocketFactory> factory = getFactoryAsync(p);
+        final int timeout = typedProperties
+                .getIntProperty(ServerProperties.WARM_UP_TIMEOUT);
+
+        FutureTask<VirtualSocketFactory> result = new FutureTask<VirtualSocketFactory>(
+                new Callable<VirtualSocketFactory>() {
+                    public VirtualSocketFactory call() throws IOException {
+                        VirtualSocketFactory result = waitFor(factory);
+
+                        ServiceLink serviceLink = result.getServiceLink();
+                        if (serviceLink != null) {
+                            try {
+                                serviceLink.waitConnected(timeout);
+                            } catch (IOException e) {
+                                logger.debug("factory not connected to hub"
+                                        + " after warm up", e);
+                            }
+                        }
+                        return result;
+                    }
+                });
+        getExecutor().execute(result);
+
+        return result;
+    }
+
+    /**
+     * Returns a pool of connections created with the factory returned by
+     * getFactory() for the same properties. All users of this factory share
+     * the pool.
+     */
+    public static ConnectionPool getConnectionPool(Properties p)
+            throws ConfigurationException, IOException {
+        TypedProperties typedProperties = ServerProperties
+                .getHardcodedProperties();
+        typedProperties.addProperties(p);
+
+        VirtualSocketFactory factory = getFactory(p);
+
+        synchronized (Client.class) {
+            ConnectionPool result = pools.get(factory);
+            if (result == null) {
+                result = new ConnectionPool(
+                        factory,
+                        typedProperties
+                                .getIntProperty(ServerProperties.POOL_MAX_PER_ENDPOINT),
+                        typedProperties
+                                .getLongProperty(ServerProperties.POOL_IDLE_TIMEOUT),
+                        typedProperties
+                                .getLongProperty(ServerProperties.POOL_HEALTH_CHECK_AFTER),
+                        typedProperties
+                                .getIntProperty(ServerProperties.POOL_CONNECT_TIMEOUT),
+                        typedProperties
+                                .getLongProperty(ServerProperties.POOL_WAIT_TIMEOUT));
+                pools.put(factory, result);
+            }
+            return result;
+        }
     }
 
 }
@@ -0,0 +1,412 @@
+package ibis.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+
+/**
+ * Pool of connections to services, so a connection (which may have to be
+ * set up through one or more hubs) can be reused for multiple requests.
+ * Connections are obtained with getConnection(), and handed back with
+ * release() if the connection can be reused, or discard() if not (for
+ * instance after an error). Connections idle for too long are closed.
+ * Connections idle for a while are checked before being handed out again.
+ */
+public final class ConnectionPool implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(ConnectionPool.class);
+
+    // time a health check waits for an indication the connection is closed
+    private static final int HEALTH_CHECK_TIMEOUT = 1;
+
+    private static class Connection {
+        final VirtualSocket socket;
+
+        final Endpoint endpoint;
+
+        long idleSince;
+
+        Connection(VirtualSocket socket, Endpoint endpoint) {
+            this.socket = socket;
+            this.endpoint = endpoint;
+        }
+    }
+
+    private static class Endpoint {
+        final VirtualSocketAddress address;
+
+        // most recently used first
+        final LinkedList<Connection> idle = new LinkedList<Connection>();
+
+        // number of connections idle, in use, or being created
+        int connections = 0;
+
+        Endpoint(VirtualSocketAddress address) {
+            this.address = address;
+        }
+    }
+
+    private final VirtualSocketFactory factory;
+
+    private final int maxPerEndpoint;
+
+    private final long idleTimeout;
+
+    private final long healthCheckAfter;
+
+    private final int connectTimeout;
+
+    private final long waitTimeout;
+
+    private final Map<VirtualSocketAddress, Endpoint> endpoints = new HashMap<VirtualSocketAddress, Endpoint>();
+
+    private final Map<VirtualSocket, Connection> inUse = new IdentityHashMap<VirtualSocket, Connection>();
+
+    // statistics
+
+    private long hits = 0;
+
+    private long misses = 0;
+
+    private long waits = 0;
+
+    private long waitTime = 0;
+
+    private long created = 0;
+
+    private long connectFailures = 0;
+
+    private long healthCheckFailures = 0;
+
+    private long expired = 0;
+
+    private long discarded = 0;
+
+    private boolean ended = false;
+
+    // paces the closing of expired connections
+    private final Ticker ticker;
+
+    /**
+     * Creates a pool.
+     *
+     * @param factory
+     *            factory used to create connections
+     * @param maxPerEndpoint
+     *            maximum number of connections (idle or in use) to a single
+     *            address, 0 for no limit
+     * @param idleTimeout
+     *            time (in milliseconds) after which an idle connection is
+     *            closed
+     * @param healthCheckAfter
+     *            time (in milliseconds) a connection must be idle before it
+     *            is checked on reuse
+     * @param connectTimeout
+     *            timeout (in milliseconds) for creating a connection
+     * @param waitTimeout
+     *            maximum time (in milliseconds) to wait for a connection if
+     *            the maximum number of connections to an address is reached
+     */
+    public ConnectionPool(VirtualSocketFactory factory, int maxPerEndpoint,
+            long idleTimeout, long healthCheckAfter, int connectTimeout,
+            long waitTimeout) {
+        this.factory = factory;
+        this.maxPerEndpoint = maxPerEndpoint;
+        this.idleTimeout = idleTimeout;
+        this.healthCheckAfter = healthCheckAfter;
+        this.connectTimeout = connectTimeout;
+        this.waitTimeout = waitTimeout;
+        ticker = new Ticker(Math.max(idleTimeout / 2, 1));
+
+        Thread thread = new Thread(this, "connection pool");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private Endpoint getEndpoint(VirtualSocketAddress address) {
+        Endpoint result = endpoints.get(address);
+        if (result == null) {
+            result = new Endpoint(address);
+            endpoints.put(address, result);
+        }
+        return result;
+    }
+
+    /**
+     * Checks if an idle connection is still usable: it should not be closed,
+     * and no data (or end of stream) should be waiting.
+     */
+    private static boolean isHealthy(VirtualSocket socket) {
+        if (socket.isClosed() || !socket.isConnected()
+                || socket.isInputShutdown() || socket.isOutputShutdown()) {
+            return false;
+        }
+
+        try {
+            InputStream in = socket.getInputStream();
+            if (in.available() > 0) {
+                // left over data, the protocol is out of sync
+                return false;
+            }
+
+            int timeout = socket.getSoTimeout();
+            socket.setSoTimeout(HEALTH_CHECK_TIMEOUT);
+            try {
+                // anything other than a timeout means the connection is
+                // closed or out of sync
+                in.read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } finally {
+                socket.setSoTimeout(timeout);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void close(VirtualSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // IGNORE
+        }
+    }
+
+    /**
+     * Returns a connection to the given address, either an idle one from the
+     * pool, or a new one. Waits if the maximum number of connections to this
+     * address is reached.
+     */
+    public VirtualSocket getConnection(VirtualSocketAddress address)
+            throws IOException {
+        Endpoint endpoint;
+
+        while (true) {
+            Connection connection = null;
+
+            synchronized (this) {
+                if (ended) {
+                    throw new IOException("connection pool ended");
+                }
+
+                endpoint = getEndpoint(address);
+
+                if (endpoint.idle.isEmpty()
+                        && maxPerEndpoint > 0
+                        && endpoint.connections >= maxPerEndpoint) {
+                    waitForConnection(endpoint);
+                }
+
+                if (!endpoint.idle.isEmpty()) {
+                    connection = endpoint.idle.removeFirst();
+                } else {
+                    // reserve a connection, created below
+                    endpoint.connections++;
+                    misses++;
+                    break;
+                }
+            }
+
+            // check outside the lock, may take a while
+            if (System.currentTimeMillis() - connection.idleSince < healthCheckAfter
+                    || isHealthy(connection.socket)) {
+                synchronized (this) {
+                    hits++;
+                    inUse.put(connection.socket, connection);
+                }
+                return connection.socket;
+            }
+
+            logger.debug("closing unhealthy connection to " + address);
+            close(connection.socket);
+            synchronized (this) {
+                healthCheckFailures++;
+                endpoint.connections--;
+                notifyAll();
+            }
+        }
+
+        VirtualSocket socket;
+        try {
+            socket = LocalTransport.connect(address, connectTimeout);
+            if (socket == null) {
+                socket = factory.createClientSocket(address, connectTimeout,
+                        null);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                connectFailures++;
+                endpoint.connections--;
+                notifyAll();
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            created++;
+            inUse.put(socket, new Connection(socket, endpoint));
+        }
+        return socket;
+    }
+
+    private void waitForConnection(Endpoint endpoint) throws IOException {
+        long start = System.currentTimeMillis();
+        long deadline = start + waitTimeout;
+        long now = start;
+
+        waits++;
+        try {
+            while (!ended && endpoint.idle.isEmpty()
+                    && endpoint.connections >= maxPerEndpoint) {
+                if (waitTimeout > 0 && now >= deadline) {
+                    throw new SocketTimeoutException(
+                            "timeout while waiting for a connection to "
+                                    + endpoint.address);
+                }
+                try {
+                    if (waitTimeout > 0) {
+                        wait(deadline - now);
+                    } else {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException(
+                            "interrupted while waiting for a connection to "
+                                    + endpoint.address);
+                }
+                now = System.currentTimeMillis();
+            }
+            if (ended) {
+                throw new IOException("connection pool ended");
+            }
+        } finally {
+            waitTime += System.currentTimeMillis() - start;
+        }
+    }
+
+    /**
+     * Hands a connection back to the pool, so it can be reused. The
+     * connection should be in a state where a new request can be sent.
+     */
+    public synchronized void release(VirtualSocket socket) {
+        Connection connection = inUse.remove(socket);
+        if (connection == null) {
+            logger.warn("released connection not from this pool: " + socket);
+            return;
+        }
+
+        if (ended || socket.isClosed()) {
+            close(socket);
+            connection.endpoint.connections--;
+        } else {
+            connection.idleSince = System.currentTimeMillis();
+            connection.endpoint.idle.addFirst(connection);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Closes a connection obtained from this pool, instead of handing it
+     * back. Should be used if an error occurred on the connection.
+     */
+    public synchronized void discard(VirtualSocket socket) {
+        Connection connection = inUse.remove(socket);
+        close(socket);
+
+        if (connection == null) {
+            logger.warn("discarded connection not from this pool: " + socket);
+            return;
+        }
+
+        discarded++;
+        connection.endpoint.connections--;
+        notifyAll();
+    }
+
+    /**
+     * Returns statistics of this pool.
+     */
+    public synchronized Map<String, String> getStats() {
+        Map<String, String> result = new HashMap<String, String>();
+
+        int idle = 0;
+        for (Endpoint endpoint : endpoints.values()) {
+            idle += endpoint.idle.size();
+        }
+
+        result.put("pool.hits", Long.toString(hits));
+        result.put("pool.misses", Long.toString(misses));
+        result.put("pool.waits", Long.toString(waits));
+        result.put("pool.wait.time", Long.toString(waitTime));
+        result.put("pool.created", Long.toString(created));
+        result.put("pool.connect.failures", Long.toString(connectFailures));
+        result.put("pool.health.check.failures", Long
+                .toString(healthCheckFailures));
+        result.put("pool.expired", Long.toString(expired));
+        result.put("pool.discarded", Long.toString(discarded));
+        result.put("pool.idle", Integer.toString(idle));
+        result.put("pool.in.use", Integer.toString(inUse.size()));
+
+        return result;
+    }
+
+    /**
+     * Closes all idle connections, and all connections released from now on.
+     */
+    public synchronized void end() {
+        ended = true;
+
+        for (Endpoint endpoint : endpoints.values()) {
+            for (Connection connection : endpoint.idle) {
+                close(connection.socket);
+                endpoint.connections--;
+            }
+            endpoint.idle.clear();
+        }
+
+        notifyAll();
+        ticker.end();
+    }
+
+    private synchronized void closeExpired() {
+        long now = System.currentTimeMillis();
+
+        Iterator<Endpoint> endpointIterator = endpoints.values().iterator();
+        while (endpointIterator.hasNext()) {
+            Endpoint endpoint = endpointIterator.next();
+
+            // least recently used connections are at the end
+            while (!endpoint.idle.isEmpty()
+                    && now - endpoint.idle.getLast().idleSince >= idleTimeout) {
+                close(endpoint.idle.removeLast().socket);
+                endpoint.connections--;
+                expired++;
+            }
+
+            if (endpoint.connections == 0) {
+                endpointIterator.remove();
+            }
+        }
+    }
+
+    public void run() {
+        while (ticker.waitForNext()) {
+            closeExpired();
+        }
+    }
+
+}
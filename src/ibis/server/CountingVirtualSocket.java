@@ -0,0 +1,281 @@
+package ibis.server;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ibis.smartsockets.virtual.VirtualSocket;
+
+/**
+ * Virtual socket which counts the bytes sent and received over another
+ * (already connected) virtual socket, see ServiceSocketFactory.
+ */
+final class CountingVirtualSocket extends VirtualSocket {
+
+    private final VirtualSocket socket;
+
+    // number of open connections, decremented when this socket is closed
+    private final AtomicInteger open;
+
+    private final AtomicLong bytesIn;
+
+    private final AtomicLong bytesOut;
+
+    private boolean closed = false;
+
+    private InputStream inputStream = null;
+
+    private OutputStream outputStream = null;
+
+    CountingVirtualSocket(VirtualSocket socket, AtomicInteger open,
+            AtomicLong bytesIn, AtomicLong bytesOut) {
+        this.socket = socket;
+        this.open = open;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+    }
+
+    public synchronized InputStream getInputStream() throws IOException {
+        if (inputStream == null) {
+            inputStream = new FilterInputStream(socket.getInputStream()) {
+                public int read() throws IOException {
+                    int result = super.read();
+                    if (result >= 0) {
+                        bytesIn.incrementAndGet();
+                    }
+                    return result;
+                }
+
+                public int read(byte[] buffer, int offset, int length)
+                        throws IOException {
+                    int result = super.read(buffer, offset, length);
+                    if (result > 0) {
+                        bytesIn.addAndGet(result);
+                    }
+                    return result;
+                }
+
+                // closing a stream closes the socket
+                public void close() throws IOException {
+                    CountingVirtualSocket.this.close();
+                }
+            };
+        }
+        return inputStream;
+    }
+
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (outputStream == null) {
+            outputStream = new FilterOutputStream(socket.getOutputStream()) {
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    bytesOut.incrementAndGet();
+                }
+
+                public void write(byte[] buffer, int offset, int length)
+                        throws IOException {
+                    out.write(buffer, offset, length);
+                    bytesOut.addAndGet(length);
+                }
+
+                public void close() throws IOException {
+                    try {
+                        flush();
+                    } finally {
+                        CountingVirtualSocket.this.close();
+                    }
+                }
+            };
+        }
+        return outputStream;
+    }
+
+    public void close() throws IOException {
+        synchronized (this) {
+            if (!closed) {
+                closed = true;
+                open.decrementAndGet();
+            }
+        }
+        socket.close();
+    }
+
+    public void waitForAccept(int timeout) throws IOException {
+        socket.waitForAccept(timeout);
+    }
+
+    protected void connectionAccepted(int timeout) throws IOException {
+        // only wraps sockets which are already connected
+    }
+
+    protected void connectionRejected(int timeout) {
+        // only wraps sockets which are already connected
+    }
+
+    public SocketAddress getRemoteSocketAddress() {
+        return socket.getRemoteSocketAddress();
+    }
+
+    public int getPort() {
+        return socket.getPort();
+    }
+
+    public SocketChannel getChannel() {
+        return socket.getChannel();
+    }
+
+    public boolean getKeepAlive() throws SocketException {
+        return socket.getKeepAlive();
+    }
+
+    public int getLocalPort() {
+        return socket.getLocalPort();
+    }
+
+    public SocketAddress getLocalSocketAddress() {
+        return socket.getLocalSocketAddress();
+    }
+
+    public boolean getOOBInline() throws SocketException {
+        return socket.getOOBInline();
+    }
+
+    public int getReceiveBufferSize() throws SocketException {
+        return socket.getReceiveBufferSize();
+    }
+
+    public boolean getReuseAddress() throws SocketException {
+        return socket.getReuseAddress();
+    }
+
+    public int getSendBufferSize() throws SocketException {
+        return socket.getSendBufferSize();
+    }
+
+    public int getSoLinger() throws SocketException {
+        return socket.getSoLinger();
+    }
+
+    public int getSoTimeout() throws SocketException {
+        return socket.getSoTimeout();
+    }
+
+    public boolean getTcpNoDelay() throws SocketException {
+        return socket.getTcpNoDelay();
+    }
+
+    public int getTrafficClass() throws SocketException {
+        return socket.getTrafficClass();
+    }
+
+    public boolean isBound() {
+        return socket.isBound();
+    }
+
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    public boolean isConnected() {
+        return socket.isConnected();
+    }
+
+    public boolean isInputShutdown() {
+        return socket.isInputShutdown();
+    }
+
+    public boolean isOutputShutdown() {
+        return socket.isOutputShutdown();
+    }
+
+    public void sendUrgentData(int data) throws IOException {
+        socket.sendUrgentData(data);
+    }
+
+    public void setKeepAlive(boolean on) throws SocketException {
+        socket.setKeepAlive(on);
+    }
+
+    public void setOOBInline(boolean on) throws SocketException {
+        socket.setOOBInline(on);
+    }
+
+    public void setReceiveBufferSize(int size) throws SocketException {
+        socket.setReceiveBufferSize(size);
+    }
+
+    public void setReuseAddress(boolean on) throws SocketException {
+        socket.setReuseAddress(on);
+    }
+
+    public void setSendBufferSize(int size) throws SocketException {
+        socket.setSendBufferSize(size);
+    }
+
+    public void setSoLinger(boolean on, int linger) throws SocketException {
+        socket.setSoLinger(on, linger);
+    }
+
+    public void setSoTimeout(int timeout) throws SocketException {
+        socket.setSoTimeout(timeout);
+    }
+
+    public void setTcpNoDelay(boolean on) throws SocketException {
+        socket.setTcpNoDelay(on);
+    }
+
+    public void setTrafficClass(int trafficClass) throws SocketException {
+        socket.setTrafficClass(trafficClass);
+    }
+
+    public void shutdownInput() throws IOException {
+        socket.shutdownInput();
+    }
+
+    public void shutdownOutput() throws IOException {
+        socket.shutdownOutput();
+    }
+
+    public void setPerformancePreferences(int connectionTime, int latency,
+            int bandwidth) {
+        socket.setPerformancePreferences(connectionTime, latency, bandwidth);
+    }
+
+    public Map<String, Object> properties() {
+        return socket.properties();
+    }
+
+    public void setProperties(Map<String, Object> properties) {
+        socket.setProperties(properties);
+    }
+
+    public Object getProperty(String key) {
+        return socket.getProperty(key);
+    }
+
+    public void setProperty(String key, Object value) {
+        socket.setProperty(key, value);
+    }
+
+    public InetAddress getLocalAddress() {
+        return socket.getLocalAddress();
+    }
+
+    public InetAddress getInetAddress() {
+        return socket.getInetAddress();
+    }
+
+    public String toString() {
+        return socket.toString();
+    }
+
+}
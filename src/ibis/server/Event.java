@@ -0,0 +1,42 @@
+package ibis.server;
+
+/**
+ * Event published by a service.
+ */
+public final class Event {
+
+    private final long time;
+
+    private final String source;
+
+    private final String message;
+
+    public Event(String source, String message) {
+        this.time = System.currentTimeMillis();
+        this.source = source;
+        this.message = message;
+    }
+
+    /**
+     * Returns the time (in milliseconds since the epoch) this event occurred.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Returns the name of the source (usually a service) of this event.
+     */
+    public String getSource() {
+        return source;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public String toString() {
+        return time + " " + source + " " + message;
+    }
+
+}
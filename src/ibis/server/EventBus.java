@@ -0,0 +1,300 @@
+package ibis.server;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Server-wide bus for events published by services. Events are put in a
+ * bounded lock-free ring buffer, and handled (printed, written to a file
+ * and/or kept for remote clients) by a single consumer thread. Publishing
+ * never takes a lock. If the buffer is full, the event is either dropped or
+ * the publisher waits until there is room, depending on the policy.
+ */
+public final class EventBus implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(EventBus.class);
+
+    // maximum time the consumer sleeps if no events are available
+    private static final long MAX_IDLE_NANOS = 10000000L;
+
+    // time a blocked publisher first waits for room in a full buffer,
+    // doubled every time the buffer is still full, up to the maximum
+    private static final long MIN_BACKOFF_NANOS = 1000L;
+
+    private static final long MAX_BACKOFF_NANOS = 1000000L;
+
+    private final boolean enabled;
+
+    private final boolean block;
+
+    private final int mask;
+
+    // sequence number of the event expected in each slot, see publish()
+    private final AtomicLongArray sequences;
+
+    private final AtomicReferenceArray<Event> slots;
+
+    private final AtomicLong tail = new AtomicLong(0);
+
+    // only accessed by the consumer thread
+    private long head = 0;
+
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    private final PrintStream out;
+
+    private final PrintStream file;
+
+    private final int remoteBufferSize;
+
+    private final LinkedList<Event> remoteBuffer = new LinkedList<Event>();
+
+    private final Thread consumer;
+
+    private volatile boolean consumerIdle = false;
+
+    private volatile boolean ended = false;
+
+    /**
+     * Creates a disabled bus: all events published are ignored.
+     */
+    EventBus() {
+        enabled = false;
+        block = false;
+        mask = 0;
+        sequences = null;
+        slots = null;
+        out = null;
+        file = null;
+        remoteBufferSize = 0;
+        consumer = null;
+    }
+
+    /**
+     * Creates a bus.
+     *
+     * @param size
+     *            size of the ring buffer, rounded up to a power of two (of
+     *            at least 2)
+     * @param block
+     *            if true, publishers wait for room in the buffer, otherwise
+     *            events are dropped if the buffer is full.
+     * @param out
+     *            stream events are printed to, or null
+     * @param fileName
+     *            file events are written to, or null
+     * @param remoteBufferSize
+     *            number of events kept for retrieval by remote clients
+     */
+    EventBus(int size, boolean block, PrintStream out, String fileName,
+            int remoteBufferSize) throws IOException, ConfigurationException {
+        if (size <= 0) {
+            throw new ConfigurationException("event buffer size should be "
+                    + "positive, not " + size);
+        }
+
+        // with a single slot, a published event (sequence position + 1)
+        // looks like a free slot to the next publisher, which overwrites it
+        int capacity = 2;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+
+        enabled = true;
+        this.block = block;
+        mask = capacity - 1;
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        slots = new AtomicReferenceArray<Event>(capacity);
+
+        this.out = out;
+        if (fileName == null) {
+            file = null;
+        } else {
+            file = new PrintStream(new FileOutputStream(fileName, true));
+        }
+        this.remoteBufferSize = remoteBufferSize;
+
+        consumer = new Thread(this, "event bus");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Returns true if events published on this bus are handled at all.
+     * Producers can use this to avoid creating events needlessly.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Publish an event.
+     *
+     * @return false if the event was dropped.
+     */
+    public boolean publish(Event event) {
+        if (!enabled || ended) {
+            return false;
+        }
+
+        long backoff = MIN_BACKOFF_NANOS;
+
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+
+            if (difference == 0) {
+                // slot free, try to claim it
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.set(index, event);
+                    // publish the event to the consumer
+                    sequences.set(index, position + 1);
+                    if (consumerIdle) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+            } else if (difference < 0) {
+                // buffer full
+                if (!block || ended) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                LockSupport.unpark(consumer);
+                // do not burn the cycles of the publishing service
+                LockSupport.parkNanos(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_NANOS);
+            }
+            // else: slot claimed by another publisher, retry
+        }
+    }
+
+    /**
+     * Publish an event with the given source and message.
+     *
+     * @return false if the event was dropped.
+     */
+    public boolean publish(String source, String message) {
+        if (!enabled) {
+            return false;
+        }
+        return publish(new Event(source, message));
+    }
+
+    /**
+     * Returns the number of events published.
+     */
+    public long getPublished() {
+        if (!enabled) {
+            return 0;
+        }
+        return tail.get();
+    }
+
+    /**
+     * Returns the number of events dropped because the buffer was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns (and forgets) the events kept for remote clients.
+     */
+    public Event[] getRecentEvents() {
+        synchronized (remoteBuffer) {
+            Event[] result = remoteBuffer.toArray(new Event[0]);
+            remoteBuffer.clear();
+            return result;
+        }
+    }
+
+    private Event poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        Event result = slots.get(index);
+        slots.set(index, null);
+        // make slot available for the next round
+        sequences.set(index, head + mask + 1);
+        head++;
+        return result;
+    }
+
+    private void handle(Event event) {
+        if (out != null) {
+            out.println(event);
+        }
+        if (file != null) {
+            file.println(event);
+        }
+        if (remoteBufferSize > 0) {
+            synchronized (remoteBuffer) {
+                remoteBuffer.addLast(event);
+                if (remoteBuffer.size() > remoteBufferSize) {
+                    remoteBuffer.removeFirst();
+                }
+            }
+        }
+    }
+
+    void end() {
+        if (!enabled) {
+            return;
+        }
+        ended = true;
+        LockSupport.unpark(consumer);
+    }
+
+    public void run() {
+        while (true) {
+            Event event = poll();
+
+            if (event == null) {
+                if (out != null) {
+                    out.flush();
+                }
+                if (file != null) {
+                    file.flush();
+                }
+                if (ended) {
+                    break;
+                }
+
+                consumerIdle = true;
+                // re-check, a publisher may not have seen the idle flag
+                event = poll();
+                if (event == null) {
+                    LockSupport.parkNanos(MAX_IDLE_NANOS);
+                    consumerIdle = false;
+                    continue;
+                }
+                consumerIdle = false;
+            }
+
+            try {
+                handle(event);
+            } catch (Throwable e) {
+                logger.debug("error on handling event " + event, e);
+            }
+        }
+
+        if (file != null) {
+            file.close();
+        }
+    }
+
+}
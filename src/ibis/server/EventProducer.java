@@ -0,0 +1,15 @@
+package ibis.server;
+
+/**
+ * Interface for services which want to publish events. If a service
+ * implements this interface, the server hands it the server-wide event bus
+ * right after creating the service.
+ */
+public interface EventProducer {
+
+    /**
+     * Called by the server with the bus this service can publish events to.
+     */
+    void setEventBus(EventBus eventBus);
+
+}
@@ -0,0 +1,43 @@
+package ibis.server;
+
+import java.util.Arrays;
+
+/**
+ * Hands out a new generation number every time a value changes. Generations
+ * start at the time the tracker is created, so they are (very likely)
+ * different for a restarted server.
+ */
+final class GenerationTracker<T> {
+
+    private long generation = System.currentTimeMillis();
+
+    private T last = null;
+
+    private static boolean equals(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        if (a instanceof Object[] && b instanceof Object[]) {
+            // order of hubs and services is not significant
+            Object[] sortedA = ((Object[]) a).clone();
+            Object[] sortedB = ((Object[]) b).clone();
+            Arrays.sort(sortedA);
+            Arrays.sort(sortedB);
+            return Arrays.equals(sortedA, sortedB);
+        }
+        return a.equals(b);
+    }
+
+    /**
+     * Returns a snapshot of the given (current) value, with a new generation
+     * if it is different from the previous value.
+     */
+    synchronized Snapshot<T> track(T value) {
+        if (!equals(last, value)) {
+            last = value;
+            generation++;
+        }
+        return new Snapshot<T>(generation, value);
+    }
+
+}
@@ -0,0 +1,167 @@
+package ibis.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+
+/**
+ * Watches a hub address file (as written by a server) for changes. Hubs found
+ * in the file are handed to all factories registered with this watcher.
+ */
+final class HubAddressFile implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(HubAddressFile.class);
+
+    private final File file;
+
+    private final Ticker ticker;
+
+    private final Set<String> hubs = new LinkedHashSet<String>();
+
+    private final List<VirtualSocketFactory> factories = new ArrayList<VirtualSocketFactory>();
+
+    private long lastModified = -1;
+
+    private long lastLength = -1;
+
+    HubAddressFile(String fileName, long interval) {
+        this.file = new File(fileName);
+        ticker = new Ticker(interval);
+
+        check();
+
+        Thread thread = new Thread(this, "hub address file watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private List<String> read() throws IOException {
+        List<String> result = new ArrayList<String>();
+
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                for (String hub : line.split(",")) {
+                    hub = hub.trim();
+                    if (!hub.equals("")) {
+                        result.add(hub);
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return result;
+    }
+
+    /**
+     * Re-reads the file if it has changed, and hands new hubs to all
+     * registered factories.
+     */
+    private void check() {
+        long modified = file.lastModified();
+        long length = file.length();
+
+        if (modified == 0) {
+            // file does not exist (yet)
+            return;
+        }
+
+        List<String> newHubs = new ArrayList<String>();
+        VirtualSocketFactory[] targets;
+
+        synchronized (this) {
+            if (modified == lastModified && length == lastLength) {
+                return;
+            }
+            lastModified = modified;
+            lastLength = length;
+
+            try {
+                for (String hub : read()) {
+                    if (hubs.add(hub)) {
+                        newHubs.add(hub);
+                    }
+                }
+            } catch (IOException e) {
+                logger.warn("could not read hub address file " + file, e);
+                return;
+            }
+
+            targets = factories.toArray(new VirtualSocketFactory[0]);
+        }
+
+        if (newHubs.isEmpty()) {
+            return;
+        }
+
+        logger.debug("new hubs in " + file + ": " + newHubs);
+
+        for (VirtualSocketFactory factory : targets) {
+            try {
+                factory.addHubs(newHubs.toArray(new String[0]));
+            } catch (Throwable e) {
+                logger.debug("could not add hubs to factory", e);
+            }
+        }
+    }
+
+    /**
+     * Returns all hubs found in the file so far, as a comma separated string,
+     * or null if none were found.
+     */
+    synchronized String getHubs() {
+        String result = null;
+        for (String hub : hubs) {
+            if (result == null) {
+                result = hub;
+            } else {
+                result = result + "," + hub;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Hand all hubs found in the file now and in the future to the given
+     * factory.
+     */
+    void register(VirtualSocketFactory factory) {
+        String[] current;
+        synchronized (this) {
+            factories.add(factory);
+            current = hubs.toArray(new String[0]);
+        }
+
+        // hubs found since the factory was created
+        if (current.length > 0) {
+            factory.addHubs(current);
+        }
+    }
+
+    /**
+     * Stops watching the file. Registered factories keep the hubs found so
+     * far.
+     */
+    void end() {
+        ticker.end();
+    }
+
+    public void run() {
+        while (ticker.waitForNext()) {
+            check();
+        }
+    }
+
+}
@@ -0,0 +1,213 @@
+package ibis.server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only journal of the hubs known to a server. Each line records a hub
+ * being added ("+ADDRESS") or removed ("-ADDRESS"). The journal is compacted
+ * (rewritten with only the current hubs) when it contains too many obsolete
+ * records. On startup, the journaled hubs are handed to the server, so it
+ * rejoins the overlay right away.
+ */
+final class HubJournal implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(HubJournal.class);
+
+    // compact if the journal has this many records per known hub
+    private static final int COMPACT_FACTOR = 4;
+
+    private static final int COMPACT_MINIMUM = 64;
+
+    private final Server server;
+
+    private final File file;
+
+    private final Set<String> hubs = new LinkedHashSet<String>();
+
+    private int records = 0;
+
+    private boolean started = false;
+
+    private final Ticker ticker;
+
+    HubJournal(Server server, String fileName, long interval) {
+        this.server = server;
+        this.file = new File(fileName);
+        ticker = new Ticker(interval);
+
+        try {
+            read();
+        } catch (IOException e) {
+            logger.warn("could not read hub journal " + file, e);
+        }
+    }
+
+    private void read() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // a partially written record is simply ignored
+                if (line.length() < 2) {
+                    continue;
+                }
+                if (line.charAt(0) == '+') {
+                    hubs.add(line.substring(1));
+                } else if (line.charAt(0) == '-') {
+                    hubs.remove(line.substring(1));
+                } else {
+                    continue;
+                }
+                records++;
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Returns the hubs found in the journal
+     */
+    synchronized String[] getHubs() {
+        return hubs.toArray(new String[0]);
+    }
+
+    /**
+     * Start recording changes of the hubs known to the server.
+     */
+    void start() {
+        synchronized (this) {
+            started = true;
+        }
+
+        Thread thread = new Thread(this, "hub journal");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void append(List<String> lines) throws IOException {
+        PrintStream out = new PrintStream(new FileOutputStream(file, true));
+        try {
+            for (String line : lines) {
+                out.println(line);
+            }
+            out.flush();
+            if (out.checkError()) {
+                throw new IOException("error on writing to " + file);
+            }
+        } finally {
+            out.close();
+        }
+        records += lines.size();
+    }
+
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+
+        PrintStream out = new PrintStream(new FileOutputStream(tmp));
+        try {
+            for (String hub : hubs) {
+                out.println("+" + hub);
+            }
+            out.flush();
+            if (out.checkError()) {
+                throw new IOException("error on writing to " + tmp);
+            }
+        } finally {
+            out.close();
+        }
+
+        // rename is not atomic on all platforms if the target exists
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("could not rename " + tmp + " to "
+                        + file);
+            }
+        }
+        records = hubs.size();
+    }
+
+    private synchronized void update() throws IOException {
+        String[] current = server.getHubs();
+        if (current == null) {
+            return;
+        }
+        Set<String> known = new HashSet<String>(Arrays.asList(current));
+
+        List<String> changes = new ArrayList<String>();
+        for (String hub : known) {
+            if (hubs.add(hub)) {
+                changes.add("+" + hub);
+            }
+        }
+        for (String hub : hubs.toArray(new String[0])) {
+            if (!known.contains(hub)) {
+                hubs.remove(hub);
+                changes.add("-" + hub);
+            }
+        }
+
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        if (records + changes.size() > Math.max(COMPACT_MINIMUM,
+                COMPACT_FACTOR * hubs.size())) {
+            compact();
+        } else {
+            append(changes);
+        }
+    }
+
+    /**
+     * Stops recording, after recording the hubs known to the server now. The
+     * journal is left compacted, so it only contains these hubs.
+     */
+    void end() {
+        ticker.end();
+
+        synchronized (this) {
+            if (!started) {
+                // nothing recorded, leave the journal as it was
+                return;
+            }
+            try {
+                update();
+                if (records > hubs.size()) {
+                    compact();
+                }
+            } catch (IOException e) {
+                logger.warn("could not update hub journal " + file, e);
+            }
+        }
+    }
+
+    public void run() {
+        while (ticker.waitForNext()) {
+            try {
+                update();
+            } catch (IOException e) {
+                logger.warn("could not update hub journal " + file, e);
+            }
+        }
+    }
+
+}
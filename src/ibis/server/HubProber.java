@@ -0,0 +1,238 @@
+package ibis.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+
+/**
+ * Periodically measures the round trip time to each known hub, and orders
+ * lists of hubs by it, so the nearest hub is tried first. Servers expose the
+ * measurements as a pseudo service.
+ */
+final class HubProber implements Service, Runnable {
+
+    private static final Logger logger = Logger.getLogger(HubProber.class);
+
+    public static final String NAME = "hub.rtt";
+
+    // weight of a new measurement in the (smoothed) latency of a hub
+    private static final double WEIGHT = 0.3;
+
+    // server to get the known hubs from, or null
+    private final Server server;
+
+    private final int timeout;
+
+    // smoothed latency in nanoseconds, LatencyProbe.UNREACHABLE, or null if
+    // not probed yet
+    private final Map<String, Long> latencies = new LinkedHashMap<String, Long>();
+
+    private final Ticker ticker;
+
+    /**
+     * @param server
+     *            server whose known hubs are probed, or null to only probe
+     *            hubs added explicitly
+     * @param interval
+     *            time (in milliseconds) between probes of all hubs
+     * @param timeout
+     *            time (in milliseconds) after which a hub is considered
+     *            unreachable
+     */
+    HubProber(Server server, long interval, int timeout) {
+        this.server = server;
+        ticker = new Ticker(interval);
+        this.timeout = timeout;
+
+        Thread thread = new Thread(this, "hub latency prober");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void addHubs(String... hubs) {
+        for (String hub : hubs) {
+            if (!latencies.containsKey(hub)) {
+                latencies.put(hub, null);
+            }
+        }
+    }
+
+    private synchronized Long getLatency(String hub) {
+        return latencies.get(hub);
+    }
+
+    private void probe(String hub) {
+        long latency;
+        try {
+            latency = LatencyProbe.probe(DirectSocketAddress.getByAddress(hub),
+                    timeout);
+        } catch (Exception e) {
+            logger.debug("could not parse hub address " + hub, e);
+            latency = LatencyProbe.UNREACHABLE;
+        }
+
+        synchronized (this) {
+            Long previous = latencies.get(hub);
+            if (latency == LatencyProbe.UNREACHABLE || previous == null
+                    || previous <= 0) {
+                latencies.put(hub, latency);
+            } else {
+                latencies.put(hub, (long) ((1 - WEIGHT) * previous + WEIGHT
+                        * latency));
+            }
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("latency to hub " + hub + " = " + latency + " ns");
+        }
+    }
+
+    /**
+     * Forgets the hubs which are no longer known to the server, and adds
+     * those which are new.
+     */
+    private void updateHubs(String[] known) {
+        synchronized (this) {
+            latencies.keySet().retainAll(Arrays.asList(known));
+        }
+        addHubs(known);
+    }
+
+    private void probeAll() {
+        // without a server, hubs are only added explicitly, and never leave
+        if (server != null) {
+            try {
+                updateHubs(server.getHubs());
+            } catch (Throwable e) {
+                logger.debug("could not get hubs of server", e);
+            }
+        }
+
+        String[] hubs;
+        synchronized (this) {
+            hubs = latencies.keySet().toArray(new String[0]);
+        }
+
+        for (String hub : hubs) {
+            probe(hub);
+        }
+    }
+
+    private static long sortKey(Long latency) {
+        if (latency == null) {
+            // unknown: after all reachable hubs
+            return Long.MAX_VALUE - 1;
+        }
+        if (latency == LatencyProbe.UNREACHABLE) {
+            return Long.MAX_VALUE;
+        }
+        return latency;
+    }
+
+    /**
+     * Returns the given hubs ordered by latency, nearest first. Hubs which
+     * were never probed are probed first. Hubs which are unreachable are put
+     * last, but not removed.
+     */
+    String[] order(String[] hubs) {
+        addHubs(hubs);
+
+        for (String hub : hubs) {
+            if (getLatency(hub) == null) {
+                probe(hub);
+            }
+        }
+
+        String[] result = hubs.clone();
+        final Map<String, Long> snapshot;
+        synchronized (this) {
+            snapshot = new LinkedHashMap<String, Long>(latencies);
+        }
+        // stable sort, equally fast hubs keep their order
+        Arrays.sort(result, new Comparator<String>() {
+            public int compare(String a, String b) {
+                long keyA = sortKey(snapshot.get(a));
+                long keyB = sortKey(snapshot.get(b));
+                return keyA < keyB ? -1 : (keyA == keyB ? 0 : 1);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Same as order(String[]), for a comma separated list of hubs. Spaces
+     * around hubs and empty entries are removed.
+     */
+    String order(String hubs) {
+        if (hubs == null || hubs.equals("")) {
+            return hubs;
+        }
+
+        List<String> list = new ArrayList<String>();
+        for (String hub : hubs.split(",")) {
+            hub = hub.trim();
+            if (!hub.equals("")) {
+                list.add(hub);
+            }
+        }
+
+        String[] ordered = order(list.toArray(new String[0]));
+
+        StringBuilder result = new StringBuilder();
+        for (String hub : ordered) {
+            if (result.length() > 0) {
+                result.append(',');
+            }
+            result.append(hub);
+        }
+        return result.toString();
+    }
+
+    public String getServiceName() {
+        return NAME;
+    }
+
+    /**
+     * Returns the round trip time (in milliseconds) to each known hub,
+     * "unreachable" or "unknown".
+     */
+    public synchronized Map<String, String> getStats() {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+
+        for (Map.Entry<String, Long> entry : latencies.entrySet()) {
+            Long latency = entry.getValue();
+            if (latency == null) {
+                result.put(entry.getKey(), "unknown");
+            } else if (latency == LatencyProbe.UNREACHABLE) {
+                result.put(entry.getKey(), "unreachable");
+            } else {
+                result.put(entry.getKey(), Double.toString(latency / 1000000.0));
+            }
+        }
+
+        return result;
+    }
+
+    public void end(long deadline) {
+        ticker.end();
+    }
+
+    public void run() {
+        probeAll();
+        while (ticker.waitForNext()) {
+            probeAll();
+        }
+    }
+
+    public String toString() {
+        return "Hub latency prober";
+    }
+
+}
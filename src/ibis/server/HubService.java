@@ -0,0 +1,208 @@
+package ibis.server;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.hub.Connections;
+import ibis.smartsockets.hub.Hub;
+import ibis.smartsockets.hub.connections.MessageForwardingConnection;
+import ibis.smartsockets.hub.connections.VirtualConnections;
+
+/**
+ * Built-in pseudo service which exposes the traffic statistics of the hub
+ * running in a hub-only server. The hub does not offer an interface for its
+ * counters, so they are read reflectively. All values are sampled in the
+ * background, getStats() only returns the last sample.
+ */
+final class HubService implements Service, Runnable {
+
+    public static final String NAME = "hub";
+
+    private static final Logger logger = Logger.getLogger(HubService.class);
+
+    private final Hub hub;
+
+    private final long interval;
+
+    // reflected state of the hub, null if not available
+    private final Connections connections;
+
+    private final VirtualConnections virtualConnections;
+
+    private final Map<?, ?> virtualConnectionMap;
+
+    private final Field messagesField;
+
+    private final Field bytesField;
+
+    private final Field routedField;
+
+    private long lastTime;
+
+    private long lastMessages = -1;
+
+    private long lastBytes = -1;
+
+    private Map<String, String> stats = new HashMap<String, String>();
+
+    private final Ticker ticker;
+
+    HubService(Hub hub, long interval) {
+        this.hub = hub;
+        this.interval = interval;
+        ticker = new Ticker(interval);
+
+        Connections connections = null;
+        VirtualConnections virtualConnections = null;
+        Map<?, ?> virtualConnectionMap = null;
+        Field messagesField = null;
+        Field bytesField = null;
+        Field routedField = null;
+        try {
+            connections = (Connections) getField(Hub.class, "connections")
+                    .get(hub);
+
+            virtualConnections = (VirtualConnections) getField(Hub.class,
+                    "virtualConnections").get(hub);
+            virtualConnectionMap = (Map<?, ?>) getField(
+                    VirtualConnections.class, "vcs").get(virtualConnections);
+
+            messagesField = getField(MessageForwardingConnection.class,
+                    "messages");
+            bytesField = getField(MessageForwardingConnection.class,
+                    "messagesBytes");
+            routedField = getField(MessageForwardingConnection.class,
+                    "connectionsTotal");
+        } catch (Throwable e) {
+            logger.warn("Could not access hub statistics, only known hubs "
+                    + "will be reported", e);
+            connections = null;
+            virtualConnections = null;
+            virtualConnectionMap = null;
+        }
+        this.connections = connections;
+        this.virtualConnections = virtualConnections;
+        this.virtualConnectionMap = virtualConnectionMap;
+        this.messagesField = messagesField;
+        this.bytesField = bytesField;
+        this.routedField = routedField;
+
+        sample();
+
+        Thread thread = new Thread(this, "hub statistics sampler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static Field getField(Class<?> clazz, String name)
+            throws NoSuchFieldException {
+        Field result = clazz.getDeclaredField(name);
+        result.setAccessible(true);
+        return result;
+    }
+
+    private void sample() {
+        Map<String, String> result = new HashMap<String, String>();
+
+        DirectSocketAddress[] knownHubs = hub.knownHubs();
+        result.put("known.hubs", Integer.toString(knownHubs.length));
+
+        if (connections != null) {
+            long messages = 0;
+            long bytes = 0;
+            long routed = 0;
+
+            DirectSocketAddress[] hubs = connections.hubs();
+            DirectSocketAddress[] clients = connections.clients();
+
+            try {
+                for (DirectSocketAddress address : hubs) {
+                    MessageForwardingConnection c = connections.getHub(address);
+                    if (c != null) {
+                        messages += messagesField.getLong(c);
+                        bytes += bytesField.getLong(c);
+                        routed += routedField.getLong(c);
+                    }
+                }
+                for (DirectSocketAddress address : clients) {
+                    MessageForwardingConnection c = connections
+                            .getClient(address);
+                    if (c != null) {
+                        messages += messagesField.getLong(c);
+                        bytes += bytesField.getLong(c);
+                        routed += routedField.getLong(c);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                // cannot happen, fields are accessible
+                logger.debug("could not read hub counters", e);
+            }
+
+            // the map is guarded by the monitor of its owner
+            int active;
+            synchronized (virtualConnections) {
+                active = virtualConnectionMap.size();
+            }
+
+            long now = System.currentTimeMillis();
+
+            result.put("connected.hubs", Integer.toString(hubs.length));
+            result.put("connected.clients", Integer.toString(clients.length));
+            result.put("routed.connections.active", Integer.toString(active));
+            result.put("routed.connections.total", Long.toString(routed));
+            result.put("forwarded.messages", Long.toString(messages));
+            result.put("forwarded.bytes", Long.toString(bytes));
+
+            // counters of closed connections disappear, so never go below 0
+            long messageRate = 0;
+            long byteRate = 0;
+            if (lastMessages >= 0 && now > lastTime) {
+                double seconds = (now - lastTime) / 1000.0;
+                messageRate = Math.round(Math.max(0, messages - lastMessages)
+                        / seconds);
+                byteRate = Math.round(Math.max(0, bytes - lastBytes) / seconds);
+            }
+            result.put("forwarded.messages.rate", Long.toString(messageRate));
+            result.put("forwarded.bytes.rate", Long.toString(byteRate));
+
+            lastTime = now;
+            lastMessages = messages;
+            lastBytes = bytes;
+        }
+
+        synchronized (this) {
+            stats = result;
+        }
+    }
+
+    public String getServiceName() {
+        return NAME;
+    }
+
+    public void end(long deadline) {
+        ticker.end();
+    }
+
+    public synchronized Map<String, String> getStats() {
+        return new HashMap<String, String>(stats);
+    }
+
+    public void run() {
+        while (ticker.waitForNext()) {
+            try {
+                sample();
+            } catch (Throwable e) {
+                logger.debug("error while sampling hub statistics", e);
+            }
+        }
+    }
+
+    public String toString() {
+        return "Hub statistics, sampled every " + interval + " ms";
+    }
+
+}
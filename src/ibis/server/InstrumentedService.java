@@ -0,0 +1,50 @@
+package ibis.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Service created with a ServiceSocketFactory. Adds the socket statistics
+ * kept by the factory to the statistics of the service itself.
+ */
+final class InstrumentedService implements Service {
+
+    private final Service service;
+
+    private final ServiceSocketFactory factory;
+
+    InstrumentedService(Service service, ServiceSocketFactory factory) {
+        this.service = service;
+        this.factory = factory;
+    }
+
+    Service getService() {
+        return service;
+    }
+
+    public String getServiceName() {
+        return service.getServiceName();
+    }
+
+    public void end(long deadline) {
+        service.end(deadline);
+    }
+
+    public Map<String, String> getStats() {
+        Map<String, String> result = new HashMap<String, String>();
+
+        result.putAll(factory.getStats());
+
+        Map<String, String> stats = service.getStats();
+        if (stats != null) {
+            result.putAll(stats);
+        }
+
+        return result;
+    }
+
+    public String toString() {
+        return service.toString();
+    }
+
+}
@@ -0,0 +1,65 @@
+package ibis.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.apache.log4j.Logger;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+
+/**
+ * Measures the round trip time to a (smartsockets) address by timing the
+ * setup of a plain TCP connection to it. The connection is closed right away,
+ * no data is exchanged.
+ */
+final class LatencyProbe {
+
+    private static final Logger logger = Logger.getLogger(LatencyProbe.class);
+
+    public static final long UNREACHABLE = -1;
+
+    private LatencyProbe() {
+        // DO NOT USE
+    }
+
+    private static long probe(InetSocketAddress[] addresses, int timeout) {
+        if (addresses == null) {
+            return UNREACHABLE;
+        }
+
+        for (InetSocketAddress address : addresses) {
+            Socket socket = new Socket();
+            try {
+                long start = System.nanoTime();
+                socket.connect(address, timeout);
+                return System.nanoTime() - start;
+            } catch (IOException e) {
+                logger.debug("could not probe " + address, e);
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // IGNORE
+                }
+            }
+        }
+        return UNREACHABLE;
+    }
+
+    /**
+     * Returns the time in nanoseconds needed to set up a connection to the
+     * given address, or UNREACHABLE if it could not be reached within the
+     * given timeout (in milliseconds).
+     */
+    static long probe(DirectSocketAddress address, int timeout) {
+        long result = probe(address.getPublicAddresses(), timeout);
+
+        if (result == UNREACHABLE) {
+            result = probe(address.getPrivateAddresses(), timeout);
+        }
+
+        return result;
+    }
+
+}
@@ -0,0 +1,134 @@
+package ibis.server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Bounded in-memory byte stream in one direction between two local sockets.
+ * Unlike a java.io pipe, it does not care which threads read and write.
+ */
+final class LocalPipe {
+
+    private static final int SIZE = 64 * 1024;
+
+    private final byte[] buffer = new byte[SIZE];
+
+    // position of the first byte available for reading
+    private int head = 0;
+
+    // number of bytes available for reading
+    private int size = 0;
+
+    private boolean readerClosed = false;
+
+    private boolean writerClosed = false;
+
+    /**
+     * Read at least one byte, waiting at most timeout milliseconds (0 means
+     * forever) for data to become available.
+     * 
+     * @return number of bytes read, or -1 at end of stream.
+     */
+    synchronized int read(byte[] destination, int offset, int length,
+            int timeout) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        while (size == 0) {
+            if (readerClosed) {
+                throw new IOException("socket closed");
+            }
+            if (writerClosed) {
+                return -1;
+            }
+            try {
+                if (timeout > 0) {
+                    long now = System.currentTimeMillis();
+                    if (now >= deadline) {
+                        throw new SocketTimeoutException("read timed out");
+                    }
+                    wait(deadline - now);
+                } else {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while reading");
+            }
+        }
+        if (readerClosed) {
+            throw new IOException("socket closed");
+        }
+
+        int result = Math.min(length, size);
+        // copy in at most two parts, as the data may wrap around
+        int first = Math.min(result, SIZE - head);
+        System.arraycopy(buffer, head, destination, offset, first);
+        System.arraycopy(buffer, 0, destination, offset + first, result
+                - first);
+
+        head = (head + result) % SIZE;
+        size -= result;
+        notifyAll();
+
+        return result;
+    }
+
+    /**
+     * Write all bytes, waiting for room in the buffer if needed.
+     */
+    synchronized void write(byte[] source, int offset, int length)
+            throws IOException {
+        while (length > 0) {
+            while (size == SIZE && !readerClosed && !writerClosed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException(
+                            "interrupted while writing");
+                }
+            }
+            if (writerClosed) {
+                throw new IOException("socket closed");
+            }
+            if (readerClosed) {
+                throw new IOException("connection reset by peer");
+            }
+
+            int tail = (head + size) % SIZE;
+            int count = Math.min(length, Math.min(SIZE - size, SIZE - tail));
+            System.arraycopy(source, offset, buffer, tail, count);
+
+            size += count;
+            offset += count;
+            length -= count;
+            notifyAll();
+        }
+    }
+
+    synchronized int available() {
+        return size;
+    }
+
+    synchronized void closeReader() {
+        readerClosed = true;
+        size = 0;
+        notifyAll();
+    }
+
+    synchronized void closeWriter() {
+        writerClosed = true;
+        notifyAll();
+    }
+
+    synchronized boolean isReaderClosed() {
+        return readerClosed;
+    }
+
+    synchronized boolean isWriterClosed() {
+        return writerClosed;
+    }
+
+}
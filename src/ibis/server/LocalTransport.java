@@ -0,0 +1,90 @@
+package ibis.server;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.virtual.VirtualServerSocket;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+
+/**
+ * Connects clients to services running in a server in the same JVM without
+ * going through the network. Servers register their factory here. A
+ * connection to a registered server is an in-memory socket pair, with the
+ * server side handed to the server socket of the service, just like a
+ * connection coming in over the network. Services do not notice the
+ * difference.
+ */
+final class LocalTransport {
+
+    private static final Logger logger = Logger.getLogger(LocalTransport.class);
+
+    // local address of each server in this JVM -> its factory
+    private static final Map<DirectSocketAddress, VirtualSocketFactory> factories = new HashMap<DirectSocketAddress, VirtualSocketFactory>();
+
+    private LocalTransport() {
+        // DO NOT USE
+    }
+
+    static synchronized void register(VirtualSocketFactory factory) {
+        factories.put(factory.getLocalHost(), factory);
+    }
+
+    static synchronized void unregister(VirtualSocketFactory factory) {
+        if (factories.get(factory.getLocalHost()) == factory) {
+            factories.remove(factory.getLocalHost());
+        }
+    }
+
+    private static synchronized VirtualSocketFactory getFactory(
+            DirectSocketAddress address) {
+        return factories.get(address);
+    }
+
+    /**
+     * Connects to the given address if it is a server in this JVM.
+     * 
+     * @return the client side of the connection, or null if the address is
+     *         not in this JVM.
+     */
+    static VirtualSocket connect(VirtualSocketAddress address, int timeout)
+            throws IOException {
+        VirtualSocketFactory factory = getFactory(address.machine());
+        if (factory == null) {
+            return null;
+        }
+
+        VirtualServerSocket serverSocket = factory.getServerSocket(address
+                .port());
+        if (serverSocket == null) {
+            throw new ConnectException("connection refused: no service on "
+                    + address);
+        }
+
+        LocalVirtualSocket[] pair = LocalVirtualSocket.createPair(
+                new VirtualSocketAddress(address.machine(), 0), address);
+
+        if (serverSocket.incomingConnection(pair[1]) != 0) {
+            throw new ConnectException("connection refused: " + address
+                    + " not accepting connections");
+        }
+
+        try {
+            pair[0].waitForAccept(timeout);
+        } catch (IOException e) {
+            pair[0].close();
+            throw e;
+        }
+
+        logger.debug("created local connection to " + address);
+
+        return pair[0];
+    }
+
+}
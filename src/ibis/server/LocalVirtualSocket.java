@@ -0,0 +1,326 @@
+package ibis.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+
+/**
+ * One end of an in-memory connection between a client and a service in the
+ * same JVM, see LocalTransport.
+ */
+final class LocalVirtualSocket extends VirtualSocket {
+
+    private static final int PENDING = 0;
+
+    private static final int ACCEPTED = 1;
+
+    private static final int REJECTED = 2;
+
+    private final VirtualSocketAddress localAddress;
+
+    private final LocalPipe in;
+
+    private final LocalPipe out;
+
+    private final InputStream inputStream;
+
+    private final OutputStream outputStream;
+
+    // state of the connection, only used at the client side
+    private int state = PENDING;
+
+    // client side of the connection, only set at the server side
+    private LocalVirtualSocket peer = null;
+
+    private volatile int timeout = 0;
+
+    private volatile boolean closed = false;
+
+    private boolean tcpNoDelay = true;
+
+    private boolean keepAlive = false;
+
+    private LocalVirtualSocket(VirtualSocketAddress localAddress,
+            VirtualSocketAddress remoteAddress, LocalPipe in, LocalPipe out) {
+        super(remoteAddress);
+        this.localAddress = localAddress;
+        this.in = in;
+        this.out = out;
+
+        inputStream = new InputStream() {
+            public int read() throws IOException {
+                byte[] buffer = new byte[1];
+                int result = read(buffer, 0, 1);
+                if (result <= 0) {
+                    return -1;
+                }
+                return buffer[0] & 0xff;
+            }
+
+            public int read(byte[] buffer, int offset, int length)
+                    throws IOException {
+                return LocalVirtualSocket.this.in.read(buffer, offset, length,
+                        timeout);
+            }
+
+            public int available() {
+                return LocalVirtualSocket.this.in.available();
+            }
+
+            public void close() throws IOException {
+                LocalVirtualSocket.this.close();
+            }
+        };
+
+        outputStream = new OutputStream() {
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            public void write(byte[] buffer, int offset, int length)
+                    throws IOException {
+                LocalVirtualSocket.this.out.write(buffer, offset, length);
+            }
+
+            public void close() throws IOException {
+                LocalVirtualSocket.this.close();
+            }
+        };
+    }
+
+    /**
+     * Creates a connected pair of sockets.
+     *
+     * @return { client side, server side }
+     */
+    static LocalVirtualSocket[] createPair(VirtualSocketAddress client,
+            VirtualSocketAddress server) {
+        LocalPipe toServer = new LocalPipe();
+        LocalPipe toClient = new LocalPipe();
+
+        LocalVirtualSocket clientSide = new LocalVirtualSocket(client, server,
+                toClient, toServer);
+        LocalVirtualSocket serverSide = new LocalVirtualSocket(server, client,
+                toServer, toClient);
+        serverSide.peer = clientSide;
+
+        return new LocalVirtualSocket[] { clientSide, serverSide };
+    }
+
+    public synchronized void waitForAccept(int timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (state == PENDING) {
+            long now = System.currentTimeMillis();
+            if (timeout > 0 && now >= deadline) {
+                throw new SocketTimeoutException("timeout while connecting");
+            }
+            try {
+                wait(timeout > 0 ? deadline - now : 0);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException(
+                        "interrupted while connecting");
+            }
+        }
+        if (state == REJECTED) {
+            throw new IOException("connection rejected");
+        }
+    }
+
+    private synchronized void setState(int state) {
+        this.state = state;
+        notifyAll();
+    }
+
+    // called on the server side socket by the server socket
+
+    protected void connectionAccepted(int timeout) throws IOException {
+        peerState(ACCEPTED);
+    }
+
+    protected void connectionRejected(int timeout) {
+        peerState(REJECTED);
+        try {
+            close();
+        } catch (IOException e) {
+            // IGNORE
+        }
+    }
+
+    private void peerState(int state) {
+        if (peer != null) {
+            peer.setState(state);
+        }
+    }
+
+    public InputStream getInputStream() throws IOException {
+        if (closed) {
+            throw new SocketException("socket closed");
+        }
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        if (closed) {
+            throw new SocketException("socket closed");
+        }
+        return outputStream;
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        in.closeReader();
+        out.closeWriter();
+        // a pending connect is not going to be accepted anymore
+        synchronized (this) {
+            if (state == PENDING) {
+                setState(REJECTED);
+            }
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public boolean isConnected() {
+        return true;
+    }
+
+    public boolean isBound() {
+        return true;
+    }
+
+    public boolean isInputShutdown() {
+        return in.isReaderClosed();
+    }
+
+    public boolean isOutputShutdown() {
+        return out.isWriterClosed();
+    }
+
+    public void shutdownInput() throws IOException {
+        in.closeReader();
+    }
+
+    public void shutdownOutput() throws IOException {
+        out.closeWriter();
+    }
+
+    public SocketChannel getChannel() {
+        return null;
+    }
+
+    public SocketAddress getLocalSocketAddress() {
+        return localAddress;
+    }
+
+    public int getLocalPort() {
+        return localAddress.port();
+    }
+
+    public InetAddress getLocalAddress() {
+        return null;
+    }
+
+    public InetAddress getInetAddress() {
+        return null;
+    }
+
+    public int getSoTimeout() throws SocketException {
+        return timeout;
+    }
+
+    public void setSoTimeout(int timeout) throws SocketException {
+        this.timeout = timeout;
+    }
+
+    public synchronized boolean getTcpNoDelay() throws SocketException {
+        return tcpNoDelay;
+    }
+
+    public synchronized void setTcpNoDelay(boolean on) throws SocketException {
+        tcpNoDelay = on;
+    }
+
+    public synchronized boolean getKeepAlive() throws SocketException {
+        return keepAlive;
+    }
+
+    public synchronized void setKeepAlive(boolean on) throws SocketException {
+        keepAlive = on;
+    }
+
+    // options below have no meaning for an in-memory connection
+
+    public boolean getOOBInline() throws SocketException {
+        return false;
+    }
+
+    public void setOOBInline(boolean on) throws SocketException {
+        // IGNORE
+    }
+
+    public int getReceiveBufferSize() throws SocketException {
+        return 0;
+    }
+
+    public void setReceiveBufferSize(int size) throws SocketException {
+        // IGNORE
+    }
+
+    public int getSendBufferSize() throws SocketException {
+        return 0;
+    }
+
+    public void setSendBufferSize(int size) throws SocketException {
+        // IGNORE
+    }
+
+    public boolean getReuseAddress() throws SocketException {
+        return false;
+    }
+
+    public void setReuseAddress(boolean on) throws SocketException {
+        // IGNORE
+    }
+
+    public int getSoLinger() throws SocketException {
+        return -1;
+    }
+
+    public void setSoLinger(boolean on, int linger) throws SocketException {
+        // IGNORE
+    }
+
+    public int getTrafficClass() throws SocketException {
+        return 0;
+    }
+
+    public void setTrafficClass(int trafficClass) throws SocketException {
+        // IGNORE
+    }
+
+    public void setPerformancePreferences(int connectionTime, int latency,
+            int bandwidth) {
+        // IGNORE
+    }
+
+    public void sendUrgentData(int data) throws IOException {
+        throw new SocketException("urgent data not supported");
+    }
+
+    public String toString() {
+        return "LocalVirtualSocket(" + localAddress + " -> "
+                + getRemoteSocketAddress() + ")";
+    }
+
+}
@@ -0,0 +1,274 @@
+package ibis.server;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Built-in pseudo service which exposes the state of the JVM the server runs
+ * in: garbage collections, memory usage, threads and the allocation rate.
+ * Services share the JVM, so this shows if a change in the latency of a
+ * service is caused by the JVM instead. All values are sampled in the
+ * background, getStats() only returns the last sample.
+ */
+final class RuntimeService implements Service, Runnable {
+
+    public static final String NAME = "runtime";
+
+    private static final Logger logger = Logger.getLogger(RuntimeService.class);
+
+    private final long interval;
+
+    private final MemoryMXBean memoryBean;
+
+    private final ThreadMXBean threadBean;
+
+    // buffer pools (direct and mapped memory), not available before Java 7
+    private final List<?> bufferPools;
+
+    private final Method bufferPoolName;
+
+    private final Method bufferPoolMemoryUsed;
+
+    // bytes allocated per thread, only available on some JVMs. If not
+    // available, the allocation rate is estimated from the growth of the
+    // heap in between collections
+    private final Method allocatedBytes;
+
+    private long lastTime;
+
+    private long lastGcTime = -1;
+
+    private long lastGcCount = -1;
+
+    private long lastAllocated = -1;
+
+    private long lastHeapUsed = -1;
+
+    private long allocationRate = 0;
+
+    private Map<String, String> stats = new HashMap<String, String>();
+
+    private final Ticker ticker;
+
+    RuntimeService(long interval) {
+        this.interval = interval;
+        ticker = new Ticker(interval);
+
+        memoryBean = ManagementFactory.getMemoryMXBean();
+        threadBean = ManagementFactory.getThreadMXBean();
+
+        List<?> bufferPools = null;
+        Method bufferPoolName = null;
+        Method bufferPoolMemoryUsed = null;
+        try {
+            Class<?> bufferPoolClass = Class
+                    .forName("java.lang.management.BufferPoolMXBean");
+            bufferPools = (List<?>) ManagementFactory.class.getMethod(
+                    "getPlatformMXBeans", Class.class).invoke(null,
+                    bufferPoolClass);
+            bufferPoolName = bufferPoolClass.getMethod("getName");
+            bufferPoolMemoryUsed = bufferPoolClass.getMethod("getMemoryUsed");
+        } catch (Throwable e) {
+            logger.debug("buffer pool statistics not available", e);
+            bufferPools = null;
+        }
+        this.bufferPools = bufferPools;
+        this.bufferPoolName = bufferPoolName;
+        this.bufferPoolMemoryUsed = bufferPoolMemoryUsed;
+
+        Method allocatedBytes = null;
+        try {
+            Class<?> sunThreadBeanClass = Class
+                    .forName("com.sun.management.ThreadMXBean");
+            if (sunThreadBeanClass.isInstance(threadBean)) {
+                allocatedBytes = sunThreadBeanClass.getMethod(
+                        "getThreadAllocatedBytes", long[].class);
+                Method supported = sunThreadBeanClass
+                        .getMethod("isThreadAllocatedMemorySupported");
+                if (!((Boolean) supported.invoke(threadBean))) {
+                    allocatedBytes = null;
+                } else {
+                    sunThreadBeanClass.getMethod(
+                            "setThreadAllocatedMemoryEnabled", boolean.class)
+                            .invoke(threadBean, Boolean.TRUE);
+                }
+            }
+        } catch (Throwable e) {
+            logger.debug("allocation rate not available", e);
+            allocatedBytes = null;
+        }
+        this.allocatedBytes = allocatedBytes;
+
+        sample();
+
+        Thread thread = new Thread(this, "runtime statistics sampler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void putUsage(Map<String, String> result, String prefix,
+            MemoryUsage usage) {
+        result.put(prefix + ".used", Long.toString(usage.getUsed()));
+        result.put(prefix + ".committed", Long.toString(usage.getCommitted()));
+        result.put(prefix + ".max", Long.toString(usage.getMax()));
+    }
+
+    // "G1 Young Generation" -> "g1.young.generation"
+    private static String toKey(String name) {
+        String result = name.toLowerCase().replaceAll("[^a-z0-9]+", ".");
+        if (result.startsWith(".")) {
+            result = result.substring(1);
+        }
+        if (result.endsWith(".")) {
+            result = result.substring(0, result.length() - 1);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the total number of bytes allocated by all live threads, or -1
+     * if not available.
+     */
+    private long getAllocatedBytes() {
+        if (allocatedBytes == null) {
+            return -1;
+        }
+
+        try {
+            long[] allocated = (long[]) allocatedBytes.invoke(threadBean,
+                    threadBean.getAllThreadIds());
+            long result = 0;
+            for (long bytes : allocated) {
+                // -1 for threads which died in the meantime
+                if (bytes > 0) {
+                    result += bytes;
+                }
+            }
+            return result;
+        } catch (Throwable e) {
+            logger.debug("could not get allocated bytes", e);
+            return -1;
+        }
+    }
+
+    private void sample() {
+        Map<String, String> result = new HashMap<String, String>();
+
+        long now = System.currentTimeMillis();
+        double seconds = lastGcTime >= 0 && now > lastTime ? (now - lastTime) / 1000.0
+                : 0;
+
+        long gcCount = 0;
+        long gcTime = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory
+                .getGarbageCollectorMXBeans()) {
+            // -1 if not known
+            long count = Math.max(0, gc.getCollectionCount());
+            long time = Math.max(0, gc.getCollectionTime());
+
+            String prefix = "gc." + toKey(gc.getName());
+            result.put(prefix + ".count", Long.toString(count));
+            result.put(prefix + ".time", Long.toString(time));
+
+            gcCount += count;
+            gcTime += time;
+        }
+        result.put("gc.count", Long.toString(gcCount));
+        result.put("gc.time", Long.toString(gcTime));
+
+        // percentage of time spent collecting since the last sample
+        long gcPercentage = 0;
+        if (seconds > 0) {
+            gcPercentage = Math.round((gcTime - lastGcTime) / seconds / 10);
+        }
+        result.put("gc.time.percentage", Long.toString(gcPercentage));
+
+        MemoryUsage heap = memoryBean.getHeapMemoryUsage();
+        putUsage(result, "heap", heap);
+        putUsage(result, "non.heap", memoryBean.getNonHeapMemoryUsage());
+
+        if (bufferPools != null) {
+            try {
+                for (Object pool : bufferPools) {
+                    result.put("buffer." + toKey((String) bufferPoolName
+                            .invoke(pool)) + ".used",
+                            bufferPoolMemoryUsed.invoke(pool).toString());
+                }
+            } catch (Throwable e) {
+                logger.debug("could not read buffer pools", e);
+            }
+        }
+
+        result.put("thread.count", Integer.toString(threadBean
+                .getThreadCount()));
+        result.put("thread.daemon.count", Integer.toString(threadBean
+                .getDaemonThreadCount()));
+        result.put("thread.peak.count", Integer.toString(threadBean
+                .getPeakThreadCount()));
+        result.put("thread.started.count", Long.toString(threadBean
+                .getTotalStartedThreadCount()));
+
+        long allocated = getAllocatedBytes();
+        if (allocated >= 0) {
+            // allocations of threads which died disappear, never go below 0
+            if (lastAllocated >= 0 && seconds > 0) {
+                allocationRate = Math.round(Math.max(0, allocated
+                        - lastAllocated)
+                        / seconds);
+            }
+        } else if (gcCount == lastGcCount && seconds > 0) {
+            // no collection since the last sample, so the heap only grew
+            allocationRate = Math.round(Math.max(0, heap.getUsed()
+                    - lastHeapUsed)
+                    / seconds);
+        }
+        // otherwise, keep the previous estimate
+        result.put("allocation.rate", Long.toString(allocationRate));
+
+        lastTime = now;
+        lastGcTime = gcTime;
+        lastGcCount = gcCount;
+        lastAllocated = allocated;
+        lastHeapUsed = heap.getUsed();
+
+        synchronized (this) {
+            stats = result;
+        }
+    }
+
+    public String getServiceName() {
+        return NAME;
+    }
+
+    public void end(long deadline) {
+        ticker.end();
+    }
+
+    public synchronized Map<String, String> getStats() {
+        return new HashMap<String, String>(stats);
+    }
+
+    public void run() {
+        while (ticker.waitForNext()) {
+            try {
+                sample();
+            } catch (Throwable e) {
+                logger.debug("error while sampling runtime statistics", e);
+            }
+        }
+    }
+
+    public String toString() {
+        return "Runtime statistics, sampled every " + interval + " ms";
+    }
+
+}
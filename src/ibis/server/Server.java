@@ -6,9 +6,14 @@ import ibis.util.TypedProperties;
 import java.io.PrintStream;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
@@ -28,22 +33,77 @@ public final class Server {
 
     private final VirtualSocketFactory virtualSocketFactory;
 
+    // if true, the factory is owned by someone else, and not ended by us
+    private final boolean sharedFactory;
+
     private final Hub hub;
 
     private final DirectSocketAddress address;
 
-    private final Map<String, Service> services;
+    // concurrent, services of supervised children are added later on
+    private final ConcurrentHashMap<String, Service> services;
 
     private final boolean hubOnly;
 
     private final boolean remote;
 
+    private final HubJournal hubJournal;
+
+    private final StartupReport startupReport;
+
+    private final StatisticsHistory statisticsHistory;
+
+    private final StatisticsPrinter statisticsPrinter;
+
+    private final StatisticsExport statisticsExport;
+
+    private final HubProber hubProber;
+
+    private final Supervisor supervisor;
+
+    private final ServerManagement management;
+
+    private final EventBus eventBus;
+
+    private final boolean printStartupReport;
+
+    private final GenerationTracker<String[]> hubsGeneration = new GenerationTracker<String[]>();
+
+    private final GenerationTracker<String[]> serviceNamesGeneration = new GenerationTracker<String[]>();
+
+    // service name -> generation of its statistics
+    private final Map<String, GenerationTracker<Map<String, String>>> statsGenerations = new HashMap<String, GenerationTracker<Map<String, String>>>();
+
     /**
      * Create a server with the given server properties
      */
-    @SuppressWarnings("unchecked")
     public Server(Properties properties) throws Exception {
-        services = new HashMap<String, Service>();
+        this(properties, null, Collections.<Service> emptyList(), Collections
+                .<ServiceFactory> emptyList(), true);
+    }
+
+    /**
+     * Create a server, see ServerBuilder.
+     * 
+     * @param properties
+     *            server properties
+     * @param factory
+     *            existing factory to use, or null to create one
+     * @param serviceList
+     *            services to add to the server
+     * @param serviceFactoryList
+     *            factories of services to create and add to the server
+     * @param scanClassPath
+     *            if true, also create all services found on the classpath
+     */
+    @SuppressWarnings("unchecked")
+    Server(Properties properties, VirtualSocketFactory factory,
+            List<Service> serviceList,
+            List<ServiceFactory> serviceFactoryList, boolean scanClassPath)
+            throws Exception {
+        startupReport = new StartupReport();
+
+        services = new ConcurrentHashMap<String, Service>();
 
         // load properties from config files and such
         TypedProperties typedProperties = ServerProperties
@@ -57,90 +117,408 @@ public final class Server {
             logger.debug("Settings for server:\n" + serverProperties);
         }
 
-        // create the virtual socket factory
-        ibis.smartsockets.util.TypedProperties smartProperties = new ibis.smartsockets.util.TypedProperties();
+        printStartupReport = typedProperties
+                .getBooleanProperty(ServerProperties.PRINT_STARTUP_REPORT);
 
-        String hubs = typedProperties
-                .getProperty(ServerProperties.HUB_ADDRESSES);
-        if (hubs != null) {
-            smartProperties.put(SmartSocketsProperties.HUB_ADDRESSES, hubs);
-        }
+        remote = typedProperties.getBooleanProperty(ServerProperties.REMOTE);
 
-        String hubAddressFile = typedProperties
-                .getProperty(ServerProperties.HUB_ADDRESS_FILE);
-        if (hubAddressFile != null) {
-            smartProperties.put(SmartSocketsProperties.HUB_ADDRESS_FILE,
-                    hubAddressFile);
-        }
+        startupReport.phase("properties");
 
-        hubOnly = typedProperties.getBooleanProperty(ServerProperties.HUB_ONLY);
+        if (typedProperties.getBooleanProperty(ServerProperties.PRINT_EVENTS)) {
+            String eventsFile = typedProperties
+                    .getProperty(ServerProperties.EVENTS_FILE);
 
-        remote = typedProperties.getBooleanProperty(ServerProperties.REMOTE);
+            PrintStream eventsOut = null;
+            if (eventsFile == null || eventsFile.equals("")) {
+                eventsFile = null;
+                // standard out is used by the remote protocol
+                eventsOut = remote ? System.err : System.out;
+            }
 
-        if (hubOnly) {
-            virtualSocketFactory = null;
+            eventBus = new EventBus(typedProperties
+                    .getIntProperty(ServerProperties.EVENTS_BUFFER_SIZE),
+                    typedProperties
+                            .getBooleanProperty(ServerProperties.EVENTS_BLOCK),
+                    eventsOut, eventsFile, remote ? typedProperties
+                            .getIntProperty(ServerProperties.EVENTS_REMOTE_BUFFER_SIZE)
+                            : 0);
+        } else {
+            eventBus = new EventBus();
+        }
 
-            smartProperties.put(SmartSocketsProperties.HUB_PORT,
-                    typedProperties.getProperty(ServerProperties.PORT));
+        // end everything started so far if the server cannot be created
+        boolean created = false;
+        try {
+            // create the virtual socket factory
+            ibis.smartsockets.util.TypedProperties smartProperties = new ibis.smartsockets.util.TypedProperties();
 
-            hub = new Hub(smartProperties);
-            address = hub.getHubAddress();
+            String hubs = typedProperties
+                    .getProperty(ServerProperties.HUB_ADDRESSES);
+            if (hubs != null) {
+                smartProperties.put(SmartSocketsProperties.HUB_ADDRESSES, hubs);
+            }
 
-        } else {
-            hub = null;
+            String hubAddressFile = typedProperties
+                    .getProperty(ServerProperties.HUB_ADDRESS_FILE);
+            if (hubAddressFile != null) {
+                smartProperties.put(SmartSocketsProperties.HUB_ADDRESS_FILE,
+                        hubAddressFile);
+            }
 
-            smartProperties.put(SmartSocketsProperties.PORT_RANGE,
-                    typedProperties.getProperty(ServerProperties.PORT));
+            hubOnly = typedProperties.getBooleanProperty(ServerProperties.HUB_ONLY);
 
-            if (typedProperties.getBooleanProperty(ServerProperties.START_HUB)) {
-                smartProperties.put(SmartSocketsProperties.START_HUB, "true");
-                smartProperties
-                        .put(SmartSocketsProperties.HUB_DELEGATE, "true");
+            if (hubOnly
+                    && (factory != null || !serviceList.isEmpty() || !serviceFactoryList
+                            .isEmpty())) {
+                throw new ConfigurationException(
+                        "cannot add services or a factory to a hub-only server");
             }
 
-            virtualSocketFactory = VirtualSocketFactory.createSocketFactory(
-                    smartProperties, true);
-            address = virtualSocketFactory.getLocalHost();
+            if (hubOnly) {
+                virtualSocketFactory = null;
+                sharedFactory = false;
+
+                smartProperties.put(SmartSocketsProperties.HUB_PORT,
+                        typedProperties.getProperty(ServerProperties.PORT));
+
+                hub = new Hub(smartProperties);
+                address = hub.getHubAddress();
 
-            try {
-                ServiceLink sl = virtualSocketFactory.getServiceLink();
-                if (sl != null) {
-                    sl.registerProperty("smartsockets.viz", "S^Ibis server:,"
-                            + address.toString());
-                    // sl.registerProperty("ibis", id.toString());
+                startupReport.phase("hub");
+
+                // expose the traffic of the hub as a pseudo service
+                Service hubService = new HubService(hub, ServerProperties
+                        .getInterval(typedProperties,
+                                ServerProperties.HUB_STATISTICS_INTERVAL));
+                services.put(hubService.getServiceName(), hubService);
+
+                startupReport.phase("service." + hubService.getServiceName());
+
+                supervisor = null;
+            } else {
+                hub = null;
+
+                smartProperties.put(SmartSocketsProperties.PORT_RANGE,
+                        typedProperties.getProperty(ServerProperties.PORT));
+
+                if (typedProperties.getBooleanProperty(ServerProperties.START_HUB)) {
+                    smartProperties.put(SmartSocketsProperties.START_HUB, "true");
+                    smartProperties
+                            .put(SmartSocketsProperties.HUB_DELEGATE, "true");
                 }
-            } catch (Throwable e) {
-                // ignored
-            }
 
-            ClassLister classLister = ClassLister.getClassLister(null);
-            Class[] serviceClassList = classLister.getClassList("Ibis-Service",
-                    Service.class).toArray(new Class[0]);
+                if (factory == null) {
+                    virtualSocketFactory = VirtualSocketFactory
+                            .createSocketFactory(smartProperties, true);
+                    sharedFactory = false;
+                } else {
+                    virtualSocketFactory = factory;
+                    sharedFactory = true;
+                }
+                address = virtualSocketFactory.getLocalHost();
+
+                if (typedProperties
+                        .getBooleanProperty(ServerProperties.LOCAL_TRANSPORT)) {
+                    LocalTransport.register(virtualSocketFactory);
+                }
 
-            for (int i = 0; i < serviceClassList.length; i++) {
                 try {
-                    Service service = (Service) serviceClassList[i]
-                            .getConstructor(
-                                    new Class[] { TypedProperties.class,
-                                            VirtualSocketFactory.class })
-                            .newInstance(
-                                    new Object[] { typedProperties,
-                                            virtualSocketFactory });
-                    services.put(service.getServiceName(), service);
-                } catch (InvocationTargetException e) {
-                    if (e.getCause() == null) {
+                    ServiceLink sl = virtualSocketFactory.getServiceLink();
+                    if (sl != null) {
+                        sl.registerProperty("smartsockets.viz", "S^Ibis server:,"
+                                + address.toString());
+                        // sl.registerProperty("ibis", id.toString());
+                    }
+                } catch (Throwable e) {
+                    // ignored
+                }
+
+                startupReport.phase("factory");
+
+                for (Service service : serviceList) {
+                    addService(service);
+                    startupReport.phase("service." + service.getServiceName());
+                }
+
+                for (ServiceFactory serviceFactory : serviceFactoryList) {
+                    String phase = "service." + serviceFactory + ".failed";
+                    try {
+                        Service service = serviceFactory.createService(
+                                typedProperties, virtualSocketFactory);
+                        addService(service);
+                        phase = "service." + service.getServiceName();
+                    } catch (Throwable e) {
+                        logger.warn("Could not create service using "
+                                + serviceFactory + ":", e);
+                    }
+                    startupReport.phase(phase);
+                }
+
+                Class[] serviceClassList = new Class[0];
+                if (scanClassPath) {
+                    ClassLister classLister = ClassLister.getClassLister(null);
+                    serviceClassList = classLister.getClassList("Ibis-Service",
+                            Service.class).toArray(new Class[0]);
+
+                    startupReport.phase("service.discovery");
+                }
+
+                Set<String> include = toSet(typedProperties
+                        .getProperty(ServerProperties.SERVICES_INCLUDE));
+                Set<String> exclude = toSet(typedProperties
+                        .getProperty(ServerProperties.SERVICES_EXCLUDE));
+                // started in a child instead
+                exclude.addAll(toSet(typedProperties
+                        .getProperty(ServerProperties.SUPERVISED_SERVICES)));
+
+                for (int i = 0; i < serviceClassList.length; i++) {
+                    String className = serviceClassList[i].getName();
+                    if ((!include.isEmpty() && !include.contains(className))
+                            || exclude.contains(className)) {
+                        logger.debug("not starting excluded service " + className);
+                        continue;
+                    }
+
+                    String phase = "service." + serviceClassList[i].getName()
+                            + ".failed";
+                    try {
+                        Service service = createService(serviceClassList[i],
+                                typedProperties);
+                        addService(service);
+                        phase = "service." + service.getServiceName();
+                    } catch (InvocationTargetException e) {
+                        if (e.getCause() == null) {
+                            logger.warn("Could not create service "
+                                    + serviceClassList[i] + ":", e);
+                        } else {
+                            logger.warn("Could not create service "
+                                    + serviceClassList[i] + ":", e.getCause());
+                        }
+                    } catch (Throwable e) {
                         logger.warn("Could not create service "
                                 + serviceClassList[i] + ":", e);
-                    } else {
-                        logger.warn("Could not create service "
-                                + serviceClassList[i] + ":", e.getCause());
                     }
+                    startupReport.phase(phase);
+                }
+
+                Set<String> supervised = toSet(typedProperties
+                        .getProperty(ServerProperties.SUPERVISED_SERVICES));
+                if (supervised.isEmpty()) {
+                    supervisor = null;
+                } else {
+                    supervisor = new Supervisor(this, properties, supervised
+                            .toArray(new String[0]), typedProperties
+                            .getProperty(ServerProperties.SUPERVISOR_JVM_OPTIONS),
+                            typedProperties.getLongProperty(
+                                    ServerProperties.SUPERVISOR_RESTART_DELAY),
+                            ServerProperties.getInterval(typedProperties,
+                                    ServerProperties.SUPERVISOR_STATISTICS_INTERVAL),
+                            ServerProperties.getInterval(typedProperties,
+                                    ServerProperties.SUPERVISOR_STATISTICS_TIMEOUT));
+                    supervisor.waitForStart(typedProperties
+                            .getLongProperty(ServerProperties.SUPERVISOR_START_TIMEOUT));
+
+                    startupReport.phase("supervisor");
+                }
+            }
+
+            // rejoin the hubs we knew before a restart
+            String hubJournalFile = typedProperties
+                    .getProperty(ServerProperties.HUB_JOURNAL);
+            if (hubJournalFile == null || hubJournalFile.equals("")) {
+                hubJournal = null;
+            } else {
+                hubJournal = new HubJournal(this, hubJournalFile, ServerProperties
+                        .getInterval(typedProperties,
+                                ServerProperties.HUB_JOURNAL_INTERVAL));
+
+                String[] journaledHubs = hubJournal.getHubs();
+                if (journaledHubs.length > 0) {
+                    logger.debug("adding " + journaledHubs.length
+                            + " hubs from journal");
+                    try {
+                        addHubs(journaledHubs);
+                    } catch (Throwable e) {
+                        logger.warn("Could not add hubs from journal", e);
+                    }
+                }
+                hubJournal.start();
+
+                startupReport.phase("hub.journal");
+            }
+
+            long hubProbeInterval = typedProperties
+                    .getLongProperty(ServerProperties.HUB_PROBE_INTERVAL);
+            if (hubProbeInterval > 0) {
+                // exposes the round trip times to hubs as a pseudo service
+                hubProber = new HubProber(this, hubProbeInterval, typedProperties
+                        .getIntProperty(ServerProperties.HUB_PROBE_TIMEOUT));
+                addService(hubProber);
+
+                startupReport.phase("service." + hubProber.getServiceName());
+            } else {
+                hubProber = null;
+            }
+
+            long runtimeInterval = typedProperties
+                    .getLongProperty(ServerProperties.RUNTIME_STATISTICS_INTERVAL);
+            if (runtimeInterval > 0) {
+                // expose the state of the JVM as a pseudo service
+                Service runtimeService = new RuntimeService(runtimeInterval);
+                addService(runtimeService);
+
+                startupReport.phase("service." + runtimeService.getServiceName());
+            }
+
+            int historySize = typedProperties
+                    .getIntProperty(ServerProperties.STATISTICS_HISTORY_SIZE);
+            if (historySize > 0) {
+                statisticsHistory = new StatisticsHistory(services, historySize,
+                        ServerProperties.getInterval(typedProperties,
+                                ServerProperties.STATISTICS_HISTORY_INTERVAL));
+            } else {
+                statisticsHistory = null;
+            }
+
+            if (typedProperties.getBooleanProperty(ServerProperties.PRINT_STATS)) {
+                long interval = ServerProperties.getInterval(typedProperties,
+                        ServerProperties.STATS_INTERVAL);
+                String statsFile = typedProperties
+                        .getProperty(ServerProperties.STATS_FILE);
+
+                if (statsFile != null && !statsFile.equals("")) {
+                    statisticsPrinter = new StatisticsPrinter(services, interval,
+                            statsFile, typedProperties
+                                    .getSizeProperty(ServerProperties.STATS_FILE_SIZE),
+                            typedProperties
+                                    .getIntProperty(ServerProperties.STATS_FILE_COUNT));
+                } else if (remote) {
+                    // standard out is used by the remote protocol
+                    statisticsPrinter = new StatisticsPrinter(services, interval,
+                            System.err);
+                } else {
+                    statisticsPrinter = new StatisticsPrinter(services, interval,
+                            System.out);
+                }
+            } else {
+                statisticsPrinter = null;
+            }
+
+            String statsExportFile = typedProperties
+                    .getProperty(ServerProperties.STATS_EXPORT);
+            if (statsExportFile != null && !statsExportFile.equals("")) {
+                statisticsExport = new StatisticsExport(services, ServerProperties
+                        .getInterval(typedProperties,
+                                ServerProperties.STATS_EXPORT_INTERVAL),
+                        statsExportFile, typedProperties
+                                .getSizeProperty(ServerProperties.STATS_EXPORT_SIZE));
+            } else {
+                statisticsExport = null;
+            }
+
+            if (typedProperties.getBooleanProperty(ServerProperties.JMX)) {
+                long interval = ServerProperties.getInterval(typedProperties,
+                        ServerProperties.JMX_INTERVAL);
+
+                ServerManagement management = null;
+                try {
+                    management = new ServerManagement(this, interval);
                 } catch (Throwable e) {
-                    logger.warn("Could not create service "
-                            + serviceClassList[i] + ":", e);
+                    logger.warn("Could not register server with JMX", e);
+                }
+                this.management = management;
+
+                startupReport.phase("jmx");
+            } else {
+                management = null;
+            }
+
+            startupReport.done();
+            created = true;
+        } finally {
+            if (!created) {
+                abort();
+            }
+        }
+    }
+
+    /**
+     * Ends whatever a constructor which failed already started.
+     */
+    private void abort() {
+        try {
+            end(-1);
+        } catch (Throwable e) {
+            logger.debug("error while ending partially created server", e);
+        }
+    }
+
+    /**
+     * Creates a service of the given class. If the service has a constructor
+     * which takes a ServiceSocketFactory, its connections are instrumented,
+     * and the resulting statistics added to those of the service.
+     */
+    private Service createService(Class<?> serviceClass,
+            TypedProperties properties) throws Exception {
+        int maxConnections = properties
+                .getIntProperty(ServerProperties.MAX_CONNECTIONS);
+
+        ServiceSocketFactory socketFactory = new ServiceSocketFactory(
+                virtualSocketFactory, maxConnections);
+
+        try {
+            Service service = (Service) serviceClass.getConstructor(
+                    new Class<?>[] { TypedProperties.class,
+                            ServiceSocketFactory.class }).newInstance(
+                    new Object[] { properties, socketFactory });
+
+            // limit for this service specifically
+            socketFactory.setMaxConnections(properties.getIntProperty(
+                    ServerProperties.MAX_CONNECTIONS + "."
+                            + service.getServiceName(), maxConnections));
+
+            return new InstrumentedService(service, socketFactory);
+        } catch (NoSuchMethodException e) {
+            // not instrumented
+        }
+
+        return (Service) serviceClass.getConstructor(
+                new Class<?>[] { TypedProperties.class,
+                        VirtualSocketFactory.class }).newInstance(
+                new Object[] { properties, virtualSocketFactory });
+    }
+
+    private static Set<String> toSet(String list) {
+        Set<String> result = new HashSet<String>();
+        if (list != null) {
+            for (String element : list.split(",")) {
+                if (!element.trim().equals("")) {
+                    result.add(element.trim());
                 }
             }
         }
+        return result;
+    }
+
+    /**
+     * Adds a service running in a child of the supervisor, unless a service
+     * with the same name exists.
+     * 
+     * @return true if the service was added
+     */
+    boolean addChildService(Service service) {
+        return services.putIfAbsent(service.getServiceName(), service) == null;
+    }
+
+    private void addService(Service service) {
+        services.put(service.getServiceName(), service);
+
+        if (service instanceof InstrumentedService) {
+            service = ((InstrumentedService) service).getService();
+        }
+        if (service instanceof EventProducer) {
+            ((EventProducer) service).setEventBus(eventBus);
+        }
     }
 
     /**
@@ -150,6 +528,14 @@ public final class Server {
         return address.toString();
     }
 
+    /**
+     * Returns the time (in milliseconds) spent in each phase of starting this
+     * server, in the order the phases were completed.
+     */
+    public Map<String, String> getStartupReport() {
+        return startupReport.toMap();
+    }
+
     /**
      * Returns the names of all services currently in this server
      */
@@ -157,6 +543,14 @@ public final class Server {
         return services.keySet().toArray(new String[0]);
     }
 
+    /**
+     * Returns the names of all services currently in this server, with a
+     * generation which only changes if the set of services changes.
+     */
+    public Snapshot<String[]> getServiceNamesSnapshot() {
+        return serviceNamesGeneration.track(getServiceNames());
+    }
+
     /**
      * Function to retrieve statistics for a given service
      * 
@@ -175,6 +569,107 @@ public final class Server {
         return service.getStats();
     }
 
+    /**
+     * Function to retrieve statistics for a given service, with a generation
+     * which only changes if the statistics change
+     * 
+     * @param serviceName
+     *            Name of service to get statistics of
+     * 
+     * @return statistics for given service, or null if service exist.
+     */
+    public Snapshot<Map<String, String>> getStatsSnapshot(String serviceName) {
+        Map<String, String> stats = getStats(serviceName);
+
+        if (stats == null) {
+            return null;
+        }
+
+        GenerationTracker<Map<String, String>> tracker;
+        synchronized (statsGenerations) {
+            tracker = statsGenerations.get(serviceName);
+            if (tracker == null) {
+                tracker = new GenerationTracker<Map<String, String>>();
+                statsGenerations.put(serviceName, tracker);
+            }
+        }
+
+        // copy, a service may change the map it returned later on
+        return tracker.track(new HashMap<String, String>(stats));
+    }
+
+    /**
+     * Function to retrieve the statistics of multiple services at once
+     * 
+     * @param serviceNames
+     *            names of the services to get statistics of, or null for all
+     *            services
+     * @param keyPrefix
+     *            only return statistics whose key starts with this prefix, or
+     *            null for all statistics
+     * 
+     * @return statistics for each (existing) service requested.
+     */
+    public Map<String, Map<String, String>> getAllStats(
+            String[] serviceNames, String keyPrefix) {
+        Map<String, Map<String, String>> result = new HashMap<String, Map<String, String>>();
+
+        if (serviceNames == null) {
+            serviceNames = getServiceNames();
+        }
+
+        for (String serviceName : serviceNames) {
+            Map<String, String> stats = getStats(serviceName);
+            if (stats == null) {
+                continue;
+            }
+
+            if (keyPrefix != null) {
+                Map<String, String> filtered = new HashMap<String, String>();
+                for (Map.Entry<String, String> entry : stats.entrySet()) {
+                    if (entry.getKey().startsWith(keyPrefix)) {
+                        filtered.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                stats = filtered;
+            }
+
+            result.put(serviceName, stats);
+        }
+
+        return result;
+    }
+
+    /**
+     * Function to retrieve the history of the (numeric) statistics of a given
+     * service
+     * 
+     * @param serviceName
+     *            Name of service to get the statistics history of
+     * @param from
+     *            start of the time range (in milliseconds since the epoch)
+     * @param to
+     *            end of the time range (in milliseconds since the epoch)
+     * 
+     * @return samples of each statistic taken in the given time range, or
+     *         null if no history for the service exists.
+     */
+    public Map<String, StatisticsSamples> getStatsHistory(String serviceName,
+            long from, long to) {
+        if (statisticsHistory == null) {
+            return null;
+        }
+
+        return statisticsHistory.get(serviceName, from, to);
+    }
+
+    /**
+     * Returns the bus services of this server publish their events to
+     */
+    public EventBus getEventBus() {
+        return eventBus;
+    }
+
     /**
      * Returns the addresses of all hubs known to this server
      */
@@ -194,6 +689,25 @@ public final class Server {
         return result.toArray(new String[0]);
     }
 
+    /**
+     * Returns the addresses of all hubs known to this server, with a
+     * generation which only changes if the set of hubs changes.
+     */
+    public Snapshot<String[]> getHubsSnapshot() {
+        return hubsGeneration.track(getHubs());
+    }
+
+    /**
+     * Returns the round trip time (in milliseconds) to each hub known to this
+     * server, "unreachable", or "unknown" if not measured yet.
+     */
+    public Map<String, String> getHubLatencies() {
+        if (hubProber == null) {
+            return new HashMap<String, String>();
+        }
+        return hubProber.getStats();
+    }
+
     /**
      * Tell the server about some hubs
      */
@@ -248,12 +762,43 @@ public final class Server {
             deadline = 0;
         }
 
+        if (management != null) {
+            management.end();
+        }
+
+        if (hubJournal != null) {
+            hubJournal.end();
+        }
+
+        if (statisticsHistory != null) {
+            statisticsHistory.end();
+        }
+
+        if (statisticsPrinter != null) {
+            statisticsPrinter.end();
+        }
+
+        if (statisticsExport != null) {
+            statisticsExport.end();
+        }
+
+        if (supervisor != null) {
+            supervisor.end(deadline);
+        }
+
+        if (virtualSocketFactory != null) {
+            // no new local connections to our services
+            LocalTransport.unregister(virtualSocketFactory);
+        }
+
         for (Service service : services.values()) {
             service.end(deadline);
         }
-        if (hubOnly) {
+
+        eventBus.end();
+        if (hub != null) {
             hub.end();
-        } else {
+        } else if (virtualSocketFactory != null && !sharedFactory) {
             virtualSocketFactory.end();
         }
     }
@@ -262,6 +807,10 @@ public final class Server {
         return remote;
     }
 
+    private boolean hasStartupReport() {
+        return printStartupReport;
+    }
+
     private static void printUsage(PrintStream out) {
         out.println("Start a server for Ibis.");
         out.println();
@@ -276,17 +825,32 @@ public final class Server {
                 .println("--hub-address-file [FILE_NAME]\tWrite the addresses of the hub to the given");
         out.println("\t\t\t\tfile. The file is deleted on exit.");
         out.println("--port PORT\t\t\tPort used for the server.");
+        out
+                .println("--hub-journal FILE_NAME\t\tRemember known hubs in the given file, and");
+        out.println("\t\t\t\trejoin them on startup.");
         out
                 .println("--remote \t\t\t\tListen to commands for this server on stdin.");
+        out
+                .println("--supervise CLASS[,CLASS]\tStart each of the given services in a child JVM.");
         out.println();
         out
                 .println("PROPERTY=VALUE\t\t\tSet a property, as if it was set in a");
         out.println("\t\t\t\tconfiguration file or as a System property.");
         out.println("Output Options:");
         out.println("--events\t\t\tPrint events.");
+        out
+                .println("--events-file FILE_NAME\t\tWrite events to the given file instead.");
         out
                 .println("--errors\t\t\tPrint details of errors (such as stacktraces).");
         out.println("--stats\t\t\t\tPrint statistics once in a while.");
+        out
+                .println("--stats-file FILE_NAME\t\tPrint statistics to the given file instead.");
+        out
+                .println("--stats-export FILE_NAME\tExport statistics to the given memory mapped file.");
+        out
+                .println("--startup-report\t\tPrint the time spent in each phase of startup.");
+        out
+                .println("--jmx\t\t\t\tExpose the server and its statistics through JMX.");
         out.println("--help | -h | /?\t\tThis message.");
     }
 
@@ -320,15 +884,38 @@ public final class Server {
                 i++;
                 properties.setProperty(ServerProperties.HUB_ADDRESS_FILE,
                         args[i]);
+            } else if (args[i].equalsIgnoreCase("--hub-journal")) {
+                i++;
+                properties.setProperty(ServerProperties.HUB_JOURNAL, args[i]);
             } else if (args[i].equalsIgnoreCase("--port")) {
                 i++;
                 properties.put(ServerProperties.PORT, args[i]);
             } else if (args[i].equalsIgnoreCase("--events")) {
                 properties.setProperty(ServerProperties.PRINT_EVENTS, "true");
+            } else if (args[i].equalsIgnoreCase("--events-file")) {
+                i++;
+                properties.setProperty(ServerProperties.PRINT_EVENTS, "true");
+                properties.setProperty(ServerProperties.EVENTS_FILE, args[i]);
             } else if (args[i].equalsIgnoreCase("--errors")) {
                 properties.setProperty(ServerProperties.PRINT_ERRORS, "true");
             } else if (args[i].equalsIgnoreCase("--stats")) {
                 properties.setProperty(ServerProperties.PRINT_STATS, "true");
+            } else if (args[i].equalsIgnoreCase("--stats-file")) {
+                i++;
+                properties.setProperty(ServerProperties.PRINT_STATS, "true");
+                properties.setProperty(ServerProperties.STATS_FILE, args[i]);
+            } else if (args[i].equalsIgnoreCase("--stats-export")) {
+                i++;
+                properties.setProperty(ServerProperties.STATS_EXPORT, args[i]);
+            } else if (args[i].equalsIgnoreCase("--startup-report")) {
+                properties.setProperty(ServerProperties.PRINT_STARTUP_REPORT,
+                        "true");
+            } else if (args[i].equalsIgnoreCase("--supervise")) {
+                i++;
+                properties.setProperty(ServerProperties.SUPERVISED_SERVICES,
+                        args[i]);
+            } else if (args[i].equalsIgnoreCase("--jmx")) {
+                properties.setProperty(ServerProperties.JMX, "true");
             } else if (args[i].equalsIgnoreCase("--remote")) {
                 properties.setProperty(ServerProperties.REMOTE, "true");
             } else if (args[i].equalsIgnoreCase("--help")
@@ -355,6 +942,10 @@ public final class Server {
             System.exit(1);
         }
 
+        if (server.hasStartupReport()) {
+            System.err.println(server.startupReport.toString());
+        }
+
         // register shutdown hook
         try {
             Runtime.getRuntime().addShutdownHook(new Shutdown(server));
@@ -363,7 +954,7 @@ public final class Server {
         }
 
         if (server.hasRemote()) {
-            new RemoteHandler(server).run();
+            new RemoteHandler(server, properties).run();
         } else {
             System.err.println(server.toString());
             String knownHubs = null;
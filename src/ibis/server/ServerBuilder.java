@@ -0,0 +1,93 @@
+package ibis.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+
+/**
+ * Builds a server which is embedded in an application. Unlike the normal
+ * server, services can be given explicitly, searching the classpath for
+ * services can be turned off, and an existing factory can be shared.
+ */
+public final class ServerBuilder {
+
+    private final Properties properties = new Properties();
+
+    private final List<Service> services = new ArrayList<Service>();
+
+    private final List<ServiceFactory> serviceFactories = new ArrayList<ServiceFactory>();
+
+    private VirtualSocketFactory factory = null;
+
+    private boolean scanClassPath = false;
+
+    /**
+     * Creates a builder for a server without any services.
+     */
+    public ServerBuilder() {
+        // nothing to do
+    }
+
+    /**
+     * Use the given server properties
+     */
+    public ServerBuilder properties(Properties properties) {
+        this.properties.putAll(properties);
+        return this;
+    }
+
+    /**
+     * Set a single server property
+     */
+    public ServerBuilder property(String key, String value) {
+        properties.setProperty(key, value);
+        return this;
+    }
+
+    /**
+     * Add an existing service to the server
+     */
+    public ServerBuilder service(Service service) {
+        services.add(service);
+        return this;
+    }
+
+    /**
+     * Add a service to the server, created using the given factory when the
+     * server is built.
+     */
+    public ServerBuilder service(ServiceFactory serviceFactory) {
+        serviceFactories.add(serviceFactory);
+        return this;
+    }
+
+    /**
+     * Use an existing factory, instead of creating one. The factory is not
+     * ended when the server ends.
+     */
+    public ServerBuilder factory(VirtualSocketFactory factory) {
+        this.factory = factory;
+        return this;
+    }
+
+    /**
+     * If true, services found on the classpath are also added to the server,
+     * like the normal server does. Default is false.
+     */
+    public ServerBuilder scanClassPath(boolean scanClassPath) {
+        this.scanClassPath = scanClassPath;
+        return this;
+    }
+
+    /**
+     * Create the server
+     */
+    public Server build() throws Exception {
+        return new Server(properties, factory, new ArrayList<Service>(
+                services), new ArrayList<ServiceFactory>(serviceFactories),
+                scanClassPath);
+    }
+
+}
@@ -0,0 +1,233 @@
+package ibis.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.AttributeChangeNotification;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanServer;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Exposes a server through JMX, see ServerManagementMBean. The hubs, service
+ * names and statistics of the server are snapshotted in the background, and
+ * MBeans for services are registered and unregistered as services come and
+ * go.
+ */
+public final class ServerManagement extends NotificationBroadcasterSupport
+        implements ServerManagementMBean, Runnable {
+
+    private static final Logger logger = Logger
+            .getLogger(ServerManagement.class);
+
+    public static final String DOMAIN = "ibis.server";
+
+    private final Server server;
+
+    private final MBeanServer mbeanServer;
+
+    private final ObjectName name;
+
+    // MBeans of the services, by service name
+    private final Map<String, ServiceStatistics> services = new HashMap<String, ServiceStatistics>();
+
+    // read without locking, so attributes can be read during a refresh
+
+    private volatile Snapshot<String[]> hubs;
+
+    private volatile Snapshot<String[]> serviceNames;
+
+    private long sequenceNumber = 0;
+
+    private boolean ended = false;
+
+    private final Ticker ticker;
+
+    /**
+     * Registers the MBeans of the given server in the platform MBean server.
+     *
+     * @param interval
+     *            time (in milliseconds) between snapshots
+     */
+    ServerManagement(Server server, long interval) throws Exception {
+        this.server = server;
+        ticker = new Ticker(interval);
+
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        name = new ObjectName(DOMAIN + ":type=Server,name="
+                + ObjectName.quote(server.getLocalAddress()));
+
+        // registers the MBeans of the services
+        refresh();
+
+        try {
+            mbeanServer.registerMBean(this, name);
+        } catch (Exception e) {
+            // do not leave the MBeans of the services behind
+            unregisterServices();
+            throw e;
+        }
+
+        Thread thread = new Thread(this, "management snapshots");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private ObjectName getServiceName(String serviceName) throws Exception {
+        return new ObjectName(DOMAIN + ":type=Service,server="
+                + ObjectName.quote(server.getLocalAddress()) + ",name="
+                + ObjectName.quote(serviceName));
+    }
+
+    private void register(String serviceName) {
+        ServiceStatistics statistics = new ServiceStatistics(serviceName);
+        statistics.refresh(server.getStatsSnapshot(serviceName));
+        try {
+            mbeanServer.registerMBean(statistics, getServiceName(serviceName));
+            services.put(serviceName, statistics);
+        } catch (Exception e) {
+            logger.warn("could not register MBean of service " + serviceName,
+                    e);
+        }
+    }
+
+    private void unregister(String serviceName) {
+        try {
+            mbeanServer.unregisterMBean(getServiceName(serviceName));
+        } catch (Exception e) {
+            logger.debug("could not unregister MBean of service "
+                    + serviceName, e);
+        }
+    }
+
+    private synchronized void refresh() {
+        if (ended) {
+            return;
+        }
+
+        Snapshot<String[]> hubs = server.getHubsSnapshot();
+        if (this.hubs != null && this.hubs.generation != hubs.generation) {
+            AttributeChangeNotification notification = new AttributeChangeNotification(
+                    this, sequenceNumber++, System.currentTimeMillis(),
+                    "known hubs changed", "Hubs", String[].class.getName(),
+                    this.hubs.value.clone(), hubs.value.clone());
+            sendNotification(notification);
+        }
+        this.hubs = hubs;
+
+        Snapshot<String[]> serviceNames = server.getServiceNamesSnapshot();
+        if (this.serviceNames == null
+                || this.serviceNames.generation != serviceNames.generation) {
+            List<String> current = new ArrayList<String>();
+            for (String serviceName : serviceNames.value) {
+                current.add(serviceName);
+                if (!services.containsKey(serviceName)) {
+                    register(serviceName);
+                }
+            }
+
+            Iterator<String> iterator = services.keySet().iterator();
+            while (iterator.hasNext()) {
+                String serviceName = iterator.next();
+                if (!current.contains(serviceName)) {
+                    unregister(serviceName);
+                    iterator.remove();
+                }
+            }
+        }
+        this.serviceNames = serviceNames;
+
+        for (Map.Entry<String, ServiceStatistics> entry : services.entrySet()) {
+            try {
+                entry.getValue().refresh(
+                        server.getStatsSnapshot(entry.getKey()));
+            } catch (Throwable e) {
+                logger.debug("could not get statistics of " + entry.getKey(),
+                        e);
+            }
+        }
+    }
+
+    public MBeanNotificationInfo[] getNotificationInfo() {
+        return new MBeanNotificationInfo[] { new MBeanNotificationInfo(
+                new String[] { AttributeChangeNotification.ATTRIBUTE_CHANGE },
+                AttributeChangeNotification.class.getName(),
+                "sent when the known hubs change") };
+    }
+
+    public String getLocalAddress() {
+        return server.getLocalAddress();
+    }
+
+    public String[] getHubs() {
+        return hubs.value.clone();
+    }
+
+    public long getHubsGeneration() {
+        return hubs.generation;
+    }
+
+    public String[] getServiceNames() {
+        return serviceNames.value.clone();
+    }
+
+    public void addHubs(String hubs) {
+        server.addHubs(hubs.split(","));
+    }
+
+    public void end(long timeout) {
+        server.end(timeout);
+    }
+
+    /**
+     * Unregisters the MBeans of all services, and stops refreshing.
+     *
+     * @return false if this was already done.
+     */
+    private synchronized boolean unregisterServices() {
+        if (ended) {
+            return false;
+        }
+        ended = true;
+        ticker.end();
+
+        for (String serviceName : services.keySet()) {
+            unregister(serviceName);
+        }
+        services.clear();
+        return true;
+    }
+
+    /**
+     * Unregisters all MBeans.
+     */
+    void end() {
+        if (!unregisterServices()) {
+            return;
+        }
+
+        try {
+            mbeanServer.unregisterMBean(name);
+        } catch (Exception e) {
+            logger.debug("could not unregister MBean of server", e);
+        }
+    }
+
+    public void run() {
+        while (ticker.waitForNext()) {
+            try {
+                refresh();
+            } catch (Throwable e) {
+                logger.debug("error while taking management snapshots", e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+package ibis.server;
+
+/**
+ * JMX management interface of a server, registered in the platform MBean
+ * server if the ibis.server.jmx property is set. Attributes are served from
+ * snapshots taken in the background. A change in the known hubs is sent as
+ * an attribute change notification of the "Hubs" attribute. The statistics
+ * of each service are available as a separate MBean.
+ */
+public interface ServerManagementMBean {
+
+    /**
+     * Returns the local address of the server as a string
+     */
+    String getLocalAddress();
+
+    /**
+     * Returns the addresses of all hubs known to the server
+     */
+    String[] getHubs();
+
+    /**
+     * Returns the generation of the known hubs, which changes if the hubs
+     * change.
+     */
+    long getHubsGeneration();
+
+    /**
+     * Returns the names of all services currently in the server
+     */
+    String[] getServiceNames();
+
+    /**
+     * Tell the server about some hubs
+     *
+     * @param hubs
+     *            comma separated list of hub addresses
+     */
+    void addHubs(String hubs);
+
+    /**
+     * Stops the server, see Server.end()
+     */
+    void end(long timeout);
+
+}
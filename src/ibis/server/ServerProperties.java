@@ -20,22 +20,130 @@ public final class ServerProperties {
 
     public static final String HUB_ADDRESS_FILE = PREFIX + "hub.address.file";
 
+    public static final String HUB_ADDRESS_FILE_INTERVAL = PREFIX
+            + "hub.address.file.interval";
+
+    public static final String HUB_JOURNAL = PREFIX + "hub.journal";
+
+    public static final String HUB_JOURNAL_INTERVAL = PREFIX
+            + "hub.journal.interval";
+
     public static final String PORT = PREFIX + "port";
 
     public static final String PRINT_EVENTS = PREFIX + "print.events";
 
+    public static final String EVENTS_FILE = PREFIX + "events.file";
+
+    public static final String EVENTS_BUFFER_SIZE = PREFIX
+            + "events.buffer.size";
+
+    public static final String EVENTS_BLOCK = PREFIX + "events.block";
+
+    public static final String EVENTS_REMOTE_BUFFER_SIZE = PREFIX
+            + "events.remote.buffer.size";
+
     public static final String PRINT_STATS = PREFIX + "print.stats";
 
+    public static final String STATS_INTERVAL = PREFIX + "stats.interval";
+
+    public static final String STATS_FILE = PREFIX + "stats.file";
+
+    public static final String STATS_FILE_SIZE = PREFIX + "stats.file.size";
+
+    public static final String STATS_FILE_COUNT = PREFIX + "stats.file.count";
+
+    public static final String STATS_EXPORT = PREFIX + "stats.export";
+
+    public static final String STATS_EXPORT_INTERVAL = PREFIX
+            + "stats.export.interval";
+
+    public static final String STATS_EXPORT_SIZE = PREFIX
+            + "stats.export.size";
+
     public static final String PRINT_ERRORS = PREFIX + "print.errors";
 
+    public static final String PRINT_STARTUP_REPORT = PREFIX
+            + "print.startup.report";
+
     public static final String REMOTE = PREFIX + "remote";
 
+    public static final String REMOTE_DEADLINE = PREFIX + "remote.deadline";
+
+    public static final String STATISTICS_HISTORY_SIZE = PREFIX
+            + "statistics.history.size";
+
+    public static final String STATISTICS_HISTORY_INTERVAL = PREFIX
+            + "statistics.history.interval";
+
+    public static final String MAX_CONNECTIONS = PREFIX + "max.connections";
+
+    public static final String LOCAL_TRANSPORT = PREFIX + "local.transport";
+
+    public static final String HUB_STATISTICS_INTERVAL = PREFIX
+            + "hub.statistics.interval";
+
+    public static final String HUB_PROBE_INTERVAL = PREFIX
+            + "hub.probe.interval";
+
+    public static final String HUB_PROBE_TIMEOUT = PREFIX
+            + "hub.probe.timeout";
+
+    public static final String JMX = PREFIX + "jmx";
+
+    public static final String JMX_INTERVAL = PREFIX + "jmx.interval";
+
+    public static final String RUNTIME_STATISTICS_INTERVAL = PREFIX
+            + "runtime.statistics.interval";
+
+    public static final String SERVICES_INCLUDE = PREFIX + "services.include";
+
+    public static final String SERVICES_EXCLUDE = PREFIX + "services.exclude";
+
+    public static final String SUPERVISED_SERVICES = PREFIX
+            + "supervised.services";
+
+    public static final String SUPERVISOR_JVM_OPTIONS = PREFIX
+            + "supervisor.jvm.options";
+
+    public static final String SUPERVISOR_RESTART_DELAY = PREFIX
+            + "supervisor.restart.delay";
+
+    public static final String SUPERVISOR_START_TIMEOUT = PREFIX
+            + "supervisor.start.timeout";
+
+    public static final String SUPERVISOR_STATISTICS_INTERVAL = PREFIX
+            + "supervisor.statistics.interval";
+
+    public static final String SUPERVISOR_STATISTICS_TIMEOUT = PREFIX
+            + "supervisor.statistics.timeout";
+
     // client side properties
 
     public static final String ADDRESS = PREFIX + "address";
 
     public static final String IS_HUB = PREFIX + "is.hub";
 
+    public static final String ADDRESS_PROBE_INTERVAL = PREFIX
+            + "address.probe.interval";
+
+    public static final String ADDRESS_PROBE_TIMEOUT = PREFIX
+            + "address.probe.timeout";
+
+    public static final String WARM_UP_TIMEOUT = PREFIX + "warm.up.timeout";
+
+    public static final String POOL_MAX_PER_ENDPOINT = PREFIX
+            + "pool.max.per.endpoint";
+
+    public static final String POOL_IDLE_TIMEOUT = PREFIX + "pool.idle.timeout";
+
+    public static final String POOL_HEALTH_CHECK_AFTER = PREFIX
+            + "pool.health.check.after";
+
+    public static final String POOL_CONNECT_TIMEOUT = PREFIX
+            + "pool.connect.timeout";
+
+    public static final String POOL_WAIT_TIMEOUT = PREFIX + "pool.wait.timeout";
+
     private static final String[][] propertiesList = new String[][] {
             { HUB_ADDRESSES, null, "Comma seperated list of hubs." },
 
@@ -46,22 +154,110 @@ public final class ServerProperties {
                     "Boolean: if true, only start a hub, not the rest of the server" },
 
             { HUB_ADDRESS_FILE, null,
-                    "String: file where the address of the hub is printed to (and deleted on exit)" },
+                    "String: file where the address of the hub is printed to (and deleted on exit). Clients read hubs from this file" },
+
+            { HUB_ADDRESS_FILE_INTERVAL, "1000",
+                    "Interval (in milliseconds) at which clients check the hub address file for changes" },
+
+            { HUB_JOURNAL, null,
+                    "String: file in which the hubs known to the server are recorded, and read back on startup" },
+
+            { HUB_JOURNAL_INTERVAL, "5000",
+                    "Interval (in milliseconds) at which changes in the known hubs are recorded in the hub journal" },
 
             { PORT, "8888", "Port which the server binds to" },
 
             { PRINT_EVENTS, "false",
                     "Boolean: if true, events of services are printed to standard out." },
+            { EVENTS_FILE, null,
+                    "String: file events are written to instead of standard out" },
+            { EVENTS_BUFFER_SIZE, "4096",
+                    "Number of events buffered before events are dropped (or publishers block)" },
+            { EVENTS_BLOCK, "false",
+                    "Boolean: if true, publishers wait for room in a full event buffer instead of dropping the event" },
+            { EVENTS_REMOTE_BUFFER_SIZE, "1000",
+                    "Number of events kept for retrieval by remote clients" },
             { PRINT_ERRORS, "false",
                     "Boolean: if true, details of errors (like stacktraces) are printed" },
             { PRINT_STATS, "false",
                     "Boolean: if true, statistics are printed to standard out regularly." },
+            { STATS_INTERVAL, "10000",
+                    "Interval (in milliseconds) at which statistics are printed" },
+            { STATS_FILE, null,
+                    "String: file statistics are printed to (as comma separated values) instead of standard out" },
+            { STATS_FILE_SIZE, "10M",
+                    "Size after which the statistics file is rolled over" },
+            { STATS_FILE_COUNT, "5",
+                    "Number of rolled over statistics files kept" },
+            { STATS_EXPORT, null,
+                    "String: memory mapped file statistics are exported to, for local monitoring tools (see StatisticsExportReader)" },
+            { STATS_EXPORT_INTERVAL, "1000",
+                    "Interval (in milliseconds) at which exported statistics are updated" },
+            { STATS_EXPORT_SIZE, "1M",
+                    "Size of the statistics export file, determines the maximum number of statistics exported" },
+            { PRINT_STARTUP_REPORT, "false",
+                    "Boolean: if true, the time spent in each phase of startup is printed" },
             {
                     REMOTE,
                     "false",
                     "Boolean: If true, the server listens to stdin for commands and responds on stdout" },
-            { ADDRESS, null, "Address of the server" },
-            { IS_HUB, "true", "Boolean: Is the server also a hub?" }, };
+            { REMOTE_DEADLINE, "30000",
+                    "Time (in milliseconds) a remote command may take before an error is replied. Can be set per command by appending \".OPCODE\"" },
+            { STATISTICS_HISTORY_SIZE, "0",
+                    "Number of samples of each statistic kept in the statistics history, 0 disables the history" },
+            { STATISTICS_HISTORY_INTERVAL, "1000",
+                    "Interval (in milliseconds) at which statistics are sampled into the statistics history" },
+            { LOCAL_TRANSPORT, "true",
+                    "Boolean: if true, clients in the same JVM connect to the services of this server in memory, instead of over the network" },
+            { MAX_CONNECTIONS, "0",
+                    "Int: maximum number of incoming connections open at the same time per (instrumented) service, 0 for no limit. Can be set per service by appending \".SERVICE_NAME\"" },
+            { HUB_STATISTICS_INTERVAL, "1000",
+                    "Interval (in milliseconds) at which the statistics of a hub-only server are sampled" },
+            { HUB_PROBE_INTERVAL, "0",
+                    "Interval (in milliseconds) at which the round trip time to each known hub is measured, by servers and clients. 0 (the default) disables this" },
+            { HUB_PROBE_TIMEOUT, "1000",
+                    "Timeout (in milliseconds) after which a hub is considered unreachable" },
+            { JMX, "false",
+                    "Boolean: if true, the server and the statistics of its services are exposed as MBeans in the platform MBean server" },
+            { JMX_INTERVAL, "1000",
+                    "Interval (in milliseconds) at which the values exposed through JMX are updated" },
+            { RUNTIME_STATISTICS_INTERVAL, "1000",
+                    "Interval (in milliseconds) at which the garbage collection, memory, thread and allocation statistics of the JVM are sampled. 0 disables this" },
+            { SERVICES_INCLUDE, null,
+                    "Comma separated list of class names of the services found on the classpath which are started. All are started if not set" },
+            { SERVICES_EXCLUDE, null,
+                    "Comma separated list of class names of the services found on the classpath which are not started" },
+            { SUPERVISED_SERVICES, null,
+                    "Comma separated list of class names of services which are each started in a child JVM, and restarted if the child exits" },
+            { SUPERVISOR_JVM_OPTIONS, null,
+                    "Options (separated by spaces) for the JVMs of supervised services" },
+            { SUPERVISOR_RESTART_DELAY, "1000",
+                    "Time (in milliseconds) between the exit of a supervised service and its restart" },
+            { SUPERVISOR_START_TIMEOUT, "60000",
+                    "Time (in milliseconds) the server waits for supervised services to start" },
+            { SUPERVISOR_STATISTICS_INTERVAL, "1000",
+                    "Time (in milliseconds) between retrievals of the statistics of supervised services" },
+            { SUPERVISOR_STATISTICS_TIMEOUT, "10000",
+                    "Time (in milliseconds) a supervised service has to reply to a retrieval of its statistics, it is restarted after three timeouts in a row" },
+            { ADDRESS, null,
+                    "Address of the server, or comma separated list of equivalent servers" },
+            { IS_HUB, "true", "Boolean: Is the server also a hub?" },
+            { ADDRESS_PROBE_INTERVAL, "10000",
+                    "Interval (in milliseconds) at which the latency to each server is measured, if multiple servers are given" },
+            { ADDRESS_PROBE_TIMEOUT, "1000",
+                    "Timeout (in milliseconds) after which a server is considered unreachable" },
+            { WARM_UP_TIMEOUT, "30000",
+                    "Maximum time (in milliseconds) a warm up waits for a factory to connect to its hub" },
+            { POOL_MAX_PER_ENDPOINT, "8",
+                    "Int: maximum number of pooled connections to a single service, 0 for no limit" },
+            { POOL_IDLE_TIMEOUT, "60000",
+                    "Time (in milliseconds) after which an idle pooled connection is closed" },
+            { POOL_HEALTH_CHECK_AFTER, "2000",
+                    "Time (in milliseconds) a pooled connection must be idle before it is checked on reuse" },
+            { POOL_CONNECT_TIMEOUT, "30000",
+                    "Timeout (in milliseconds) for creating a pooled connection" },
+            { POOL_WAIT_TIMEOUT, "30000",
+                    "Maximum time (in milliseconds) to wait for a pooled connection if the maximum is reached, 0 for no limit" }, };
 
     public static TypedProperties getHardcodedProperties() {
         TypedProperties properties = new TypedProperties();
@@ -75,6 +271,20 @@ public final class ServerProperties {
         return properties;
     }
 
+    /**
+     * Returns the interval (in milliseconds) given by the property with the
+     * given name, which should be positive.
+     */
+    static long getInterval(TypedProperties properties, String name)
+            throws ConfigurationException {
+        long result = properties.getLongProperty(name);
+        if (result <= 0) {
+            throw new ConfigurationException(name
+                    + " should be positive, not " + result);
+        }
+        return result;
+    }
+
     public static Map<String, String> getDescriptions() {
         Map<String, String> result = new LinkedHashMap<String, String>();
 
@@ -0,0 +1,109 @@
+package ibis.server;
+
+import org.apache.log4j.Logger;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+
+/**
+ * Selects the "best" of a number of equivalent servers. The round trip time to
+ * each server is probed in the background, the fastest server which responded
+ * to the last probe is selected. If a server stops responding, the next
+ * fastest one is used automatically. Until all servers have been probed once,
+ * the first server is selected.
+ */
+final class ServerSelector implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(ServerSelector.class);
+
+    // weight of a new measurement in the (smoothed) latency of a server
+    private static final double WEIGHT = 0.3;
+
+    private final DirectSocketAddress[] servers;
+
+    // smoothed latency in nanoseconds, or LatencyProbe.UNREACHABLE
+    private final long[] latencies;
+
+    private final int timeout;
+
+    // true once all servers have been probed
+    private boolean measured = false;
+
+    private final Ticker ticker;
+
+    ServerSelector(DirectSocketAddress[] servers, long interval, int timeout) {
+        this.servers = servers;
+        ticker = new Ticker(interval);
+        this.timeout = timeout;
+
+        latencies = new long[servers.length];
+
+        Thread thread = new Thread(this, "server latency prober");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void probeAll() {
+        for (int i = 0; i < servers.length; i++) {
+            long latency = LatencyProbe.probe(servers[i], timeout);
+
+            synchronized (this) {
+                if (latency == LatencyProbe.UNREACHABLE
+                        || latencies[i] <= 0) {
+                    latencies[i] = latency;
+                } else {
+                    latencies[i] = (long) ((1 - WEIGHT) * latencies[i] + WEIGHT
+                            * latency);
+                }
+            }
+
+            if (logger.isDebugEnabled()) {
+                logger.debug("latency to " + servers[i] + " = " + latency
+                        + " ns");
+            }
+        }
+
+        synchronized (this) {
+            measured = true;
+        }
+    }
+
+    /**
+     * Returns the fastest server which responded to the last probe. If no
+     * server responded, or not all servers have been probed yet, the first
+     * server given is returned.
+     */
+    synchronized DirectSocketAddress getServer() {
+        if (!measured) {
+            return servers[0];
+        }
+
+        int best = -1;
+        for (int i = 0; i < servers.length; i++) {
+            if (latencies[i] != LatencyProbe.UNREACHABLE
+                    && (best == -1 || latencies[i] < latencies[best])) {
+                best = i;
+            }
+        }
+
+        if (best == -1) {
+            logger.debug("no server reachable, using first server");
+            return servers[0];
+        }
+
+        return servers[best];
+    }
+
+    /**
+     * Stops probing the servers.
+     */
+    void end() {
+        ticker.end();
+    }
+
+    public void run() {
+        do {
+            probeAll();
+        } while (ticker.waitForNext());
+    }
+
+}
@@ -6,7 +6,8 @@ import java.util.Map;
  * Interface for an Ibis Service. Any service which want to be automatiscally
  * started by the ibis-server, needs to implement this interface. It should also
  * have a constructor: Service(TypedProperties properties, VirtualSocketFactory
- * factory)
+ * factory), or Service(TypedProperties properties, ServiceSocketFactory
+ * factory) to have its connections counted in its statistics.
  */
 public interface Service {
 
@@ -0,0 +1,22 @@
+package ibis.server;
+
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+import ibis.util.TypedProperties;
+
+/**
+ * Creates a service for a server built with a ServerBuilder.
+ */
+public interface ServiceFactory {
+
+    /**
+     * Create a service.
+     * 
+     * @param properties
+     *            properties of the server
+     * @param factory
+     *            factory used by the server
+     */
+    Service createService(TypedProperties properties,
+            VirtualSocketFactory factory) throws Exception;
+
+}
@@ -0,0 +1,219 @@
+package ibis.server;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ibis.smartsockets.direct.DirectSocketAddress;
+import ibis.smartsockets.virtual.VirtualServerSocket;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+
+/**
+ * View of the virtual socket factory of a server, given to a single service.
+ * Counts the connections accepted and made by the service, the time making
+ * a connection took, and the bytes sent and received over them. Optionally limits the
+ * number of incoming connections open at the same time: if the limit is
+ * reached, new connections are closed right after they are accepted.
+ *
+ * A service gets one of these if it has a constructor
+ * Service(TypedProperties properties, ServiceSocketFactory factory).
+ */
+public final class ServiceSocketFactory {
+
+    private final VirtualSocketFactory factory;
+
+    private volatile int maxConnections;
+
+    private final AtomicLong accepted = new AtomicLong(0);
+
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    private final AtomicLong connects = new AtomicLong(0);
+
+    private final AtomicLong connectTime = new AtomicLong(0);
+
+    private final AtomicLong connectFailures = new AtomicLong(0);
+
+    private final AtomicInteger incoming = new AtomicInteger(0);
+
+    private final AtomicInteger outgoing = new AtomicInteger(0);
+
+    private final AtomicLong bytesIn = new AtomicLong(0);
+
+    private final AtomicLong bytesOut = new AtomicLong(0);
+
+    /**
+     * @param factory
+     *            the factory of the server
+     * @param maxConnections
+     *            maximum number of incoming connections open at the same
+     *            time, 0 for no limit
+     */
+    ServiceSocketFactory(VirtualSocketFactory factory, int maxConnections) {
+        this.factory = factory;
+        this.maxConnections = maxConnections;
+    }
+
+    void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Returns the (uninstrumented) factory of the server.
+     */
+    public VirtualSocketFactory getFactory() {
+        return factory;
+    }
+
+    public DirectSocketAddress getLocalHost() {
+        return factory.getLocalHost();
+    }
+
+    public ServerSocket createServerSocket(int port, int backlog,
+            Map<String, Object> properties) throws IOException {
+        return new ServerSocket(factory.createServerSocket(port, backlog,
+                properties));
+    }
+
+    public ServerSocket createServerSocket(int port, int backlog,
+            boolean retry, Map<String, Object> properties) {
+        return new ServerSocket(factory.createServerSocket(port, backlog,
+                retry, properties));
+    }
+
+    public VirtualSocket createClientSocket(VirtualSocketAddress target,
+            int timeout, Map<String, Object> properties) throws IOException {
+        return createClientSocket(target, timeout, false, properties);
+    }
+
+    public VirtualSocket createClientSocket(VirtualSocketAddress target,
+            int timeout, boolean fillTimeout, Map<String, Object> properties)
+            throws IOException {
+        long start = System.nanoTime();
+        VirtualSocket socket;
+        try {
+            socket = factory.createClientSocket(target, timeout, fillTimeout,
+                    properties);
+        } catch (IOException e) {
+            connectFailures.incrementAndGet();
+            throw e;
+        }
+        connectTime.addAndGet(System.nanoTime() - start);
+        connects.incrementAndGet();
+        outgoing.incrementAndGet();
+
+        return new CountingVirtualSocket(socket, outgoing, bytesIn, bytesOut);
+    }
+
+    private static String average(long totalNanos, long count) {
+        if (count == 0) {
+            return "0.0";
+        }
+        return Double.toString(totalNanos / 1000000.0 / count);
+    }
+
+    /**
+     * Returns the socket statistics of the service.
+     */
+    Map<String, String> getStats() {
+        Map<String, String> result = new HashMap<String, String>();
+
+        long accepted = this.accepted.get();
+        long rejected = this.rejected.get();
+        long connects = this.connects.get();
+
+        result.put("socket.accepted", Long.toString(accepted));
+        result.put("socket.rejected", Long.toString(rejected));
+        result.put("socket.connects", Long.toString(connects));
+        result.put("socket.connect.time.avg", average(connectTime.get(),
+                connects));
+        result.put("socket.connect.failures", Long.toString(connectFailures
+                .get()));
+        result.put("socket.open.incoming", Integer.toString(incoming.get()));
+        result.put("socket.open.outgoing", Integer.toString(outgoing.get()));
+        result.put("socket.max.connections", Integer.toString(maxConnections));
+        result.put("socket.bytes.in", Long.toString(bytesIn.get()));
+        result.put("socket.bytes.out", Long.toString(bytesOut.get()));
+
+        return result;
+    }
+
+    /**
+     * Server socket of a service. Sockets accepted are counted, and closed if
+     * the service already has the maximum number of connections open.
+     */
+    public final class ServerSocket {
+
+        private final VirtualServerSocket socket;
+
+        ServerSocket(VirtualServerSocket socket) {
+            this.socket = socket;
+        }
+
+        public VirtualSocket accept() throws IOException {
+            while (true) {
+                VirtualSocket result = socket.accept();
+
+                // count the connection first, so sockets accepted at the
+                // same time cannot together exceed the maximum
+                int open = incoming.incrementAndGet();
+                int max = maxConnections;
+                if (max > 0 && open > max) {
+                    incoming.decrementAndGet();
+                    rejected.incrementAndGet();
+                    try {
+                        result.close();
+                    } catch (IOException e) {
+                        // IGNORE
+                    }
+                    continue;
+                }
+
+                accepted.incrementAndGet();
+
+                return new CountingVirtualSocket(result, incoming, bytesIn,
+                        bytesOut);
+            }
+        }
+
+        public VirtualSocketAddress getLocalSocketAddress() {
+            return socket.getLocalSocketAddress();
+        }
+
+        public int getPort() {
+            return socket.getPort();
+        }
+
+        public void setSoTimeout(int timeout) throws IOException {
+            socket.setSoTimeout(timeout);
+        }
+
+        public int getSoTimeout() throws IOException {
+            return socket.getSoTimeout();
+        }
+
+        public boolean isClosed() {
+            return socket.isClosed();
+        }
+
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        /**
+         * Returns the (uninstrumented) server socket.
+         */
+        public VirtualServerSocket getVirtualServerSocket() {
+            return socket;
+        }
+
+        public String toString() {
+            return socket.toString();
+        }
+    }
+
+}
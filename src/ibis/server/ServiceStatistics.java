@@ -0,0 +1,152 @@
+package ibis.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanConstructorInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * MBean with a read-only attribute for each statistic of a service. Values
+ * which are numbers are exposed as Long or Double, so monitoring tools can
+ * plot them. Attributes are served from the last snapshot given to
+ * refresh(), the service itself is never called.
+ */
+final class ServiceStatistics implements DynamicMBean {
+
+    private final String serviceName;
+
+    private Snapshot<Map<String, String>> snapshot = null;
+
+    // type of each attribute, as given in the info
+    private Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+
+    private MBeanInfo info;
+
+    ServiceStatistics(String serviceName) {
+        this.serviceName = serviceName;
+
+        info = createInfo(types);
+    }
+
+    private static Class<?> getType(String value) {
+        if (value == null) {
+            return String.class;
+        }
+        try {
+            Long.parseLong(value);
+            return Long.class;
+        } catch (NumberFormatException e) {
+            // not a long
+        }
+        try {
+            Double.parseDouble(value);
+            return Double.class;
+        } catch (NumberFormatException e) {
+            // not a double either
+        }
+        return String.class;
+    }
+
+    private static Object convert(String value, Class<?> type) {
+        if (value == null) {
+            return null;
+        }
+        if (type == Long.class) {
+            return Long.valueOf(value);
+        }
+        if (type == Double.class) {
+            return Double.valueOf(value);
+        }
+        return value;
+    }
+
+    private MBeanInfo createInfo(Map<String, Class<?>> types) {
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[types.size()];
+        int i = 0;
+        for (Map.Entry<String, Class<?>> entry : types.entrySet()) {
+            attributes[i++] = new MBeanAttributeInfo(entry.getKey(), entry
+                    .getValue().getName(), "statistic " + entry.getKey()
+                    + " of service " + serviceName, true, false, false);
+        }
+
+        return new MBeanInfo(ServiceStatistics.class.getName(),
+                "Statistics of service " + serviceName, attributes,
+                new MBeanConstructorInfo[0], new MBeanOperationInfo[0],
+                new MBeanNotificationInfo[0]);
+    }
+
+    /**
+     * Use the given statistics from now on. The attributes only change if
+     * the statistics have a new generation.
+     */
+    synchronized void refresh(Snapshot<Map<String, String>> snapshot) {
+        if (snapshot == null
+                || (this.snapshot != null && this.snapshot.generation == snapshot.generation)) {
+            return;
+        }
+        this.snapshot = snapshot;
+
+        Map<String, Class<?>> types = new HashMap<String, Class<?>>();
+        for (Map.Entry<String, String> entry : snapshot.value.entrySet()) {
+            types.put(entry.getKey(), getType(entry.getValue()));
+        }
+
+        if (!types.equals(this.types)) {
+            this.types = types;
+            info = createInfo(types);
+        }
+    }
+
+    public synchronized Object getAttribute(String attribute)
+            throws AttributeNotFoundException {
+        if (snapshot == null || !snapshot.value.containsKey(attribute)) {
+            throw new AttributeNotFoundException("service " + serviceName
+                    + " has no statistic " + attribute);
+        }
+        return convert(snapshot.value.get(attribute), types.get(attribute));
+    }
+
+    public synchronized AttributeList getAttributes(String[] attributes) {
+        AttributeList result = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                result.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // left out, as required
+            }
+        }
+        return result;
+    }
+
+    public synchronized MBeanInfo getMBeanInfo() {
+        return info;
+    }
+
+    public Object invoke(String actionName, Object[] params,
+            String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName),
+                "statistics of service " + serviceName + " have no operations");
+    }
+
+    public void setAttribute(Attribute attribute)
+            throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("statistic "
+                + attribute.getName() + " of service " + serviceName
+                + " is read-only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        // all attributes are read-only
+        return new AttributeList();
+    }
+
+}
@@ -0,0 +1,30 @@
+package ibis.server;
+
+import java.util.Arrays;
+
+/**
+ * A value (such as the list of hubs, or the statistics of a service) together
+ * with its generation. The generation changes if, and only if, the value
+ * changes, so clients can cheaply check if a value they have seen before is
+ * still up to date.
+ */
+public final class Snapshot<T> {
+
+    public final long generation;
+
+    public final T value;
+
+    public Snapshot(long generation, T value) {
+        this.generation = generation;
+        this.value = value;
+    }
+
+    public String toString() {
+        if (value instanceof Object[]) {
+            return "generation " + generation + ": "
+                    + Arrays.toString((Object[]) value);
+        }
+        return "generation " + generation + ": " + value;
+    }
+
+}
@@ -0,0 +1,423 @@
+package ibis.server;
+
+import ibis.smartsockets.hub.Hub;
+import ibis.smartsockets.virtual.VirtualSocketFactory;
+import ibis.util.TypedProperties;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Benchmark of starting and ending a server, in normal and in hub-only mode.
+ * A normal server gets a number of synthetic services, which take a
+ * configurable time to create and to end. Prints percentiles of the time
+ * until a server is ready (built) and until it is stopped (ended, and its hub
+ * thread finished), and optionally writes them to a report file as KEY=VALUE
+ * lines (times in milliseconds). Exits with 1 if a threshold is exceeded, so it can be used
+ * to detect regressions. See the "benchmark" target in build.xml.
+ */
+public final class StartupBenchmark {
+
+    private static final int[] PERCENTILES = { 50, 90, 99, 100 };
+
+    private static final String NORMAL = "normal";
+
+    private static final String HUB_ONLY = "hub-only";
+
+    // time (in milliseconds) the hub of a server has to end once ended
+    private static final long STOP_TIMEOUT = 10000;
+
+    /**
+     * Service which only takes time to create and end.
+     */
+    private static class SyntheticService implements Service {
+        private final String name;
+
+        private final long endDelay;
+
+        SyntheticService(String name, long endDelay) {
+            this.name = name;
+            this.endDelay = endDelay;
+        }
+
+        public String getServiceName() {
+            return name;
+        }
+
+        public Map<String, String> getStats() {
+            return new HashMap<String, String>();
+        }
+
+        public void end(long deadline) {
+            sleep(endDelay);
+        }
+    }
+
+    private static class SyntheticServiceFactory implements ServiceFactory {
+        private final String name;
+
+        private final long createDelay;
+
+        private final long endDelay;
+
+        SyntheticServiceFactory(String name, long createDelay, long endDelay) {
+            this.name = name;
+            this.createDelay = createDelay;
+            this.endDelay = endDelay;
+        }
+
+        public Service createService(TypedProperties properties,
+                VirtualSocketFactory factory) {
+            sleep(createDelay);
+            return new SyntheticService(name, endDelay);
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final Properties properties;
+
+    private final int services;
+
+    private final long createDelay;
+
+    private final long endDelay;
+
+    private StartupBenchmark(Properties properties, int services,
+            long createDelay, long endDelay) {
+        this.properties = properties;
+        this.services = services;
+        this.createDelay = createDelay;
+        this.endDelay = endDelay;
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            // IGNORE
+        }
+    }
+
+    /**
+     * Starts and ends a single server.
+     *
+     * @return { time until ready, time until stopped } in nanoseconds
+     */
+    private long[] cycle(String mode) throws Exception {
+        ServerBuilder builder = new ServerBuilder().properties(properties);
+        // any free port, a port just used may not be available yet
+        builder.property(ServerProperties.PORT, "0");
+
+        if (mode.equals(HUB_ONLY)) {
+            builder.property(ServerProperties.HUB_ONLY, "true");
+        } else {
+            for (int i = 0; i < services; i++) {
+                builder.service(new SyntheticServiceFactory("synthetic." + i,
+                        createDelay, endDelay));
+            }
+        }
+
+        Set<Thread> before = new HashSet<Thread>(Thread.getAllStackTraces()
+                .keySet());
+
+        long start = System.nanoTime();
+        Server server = builder.build();
+        long ready = System.nanoTime();
+
+        List<Thread> hubs = getNewHubs(before);
+
+        long ending = System.nanoTime();
+        server.end(0);
+        // the server is only stopped once its hub has ended, which may be
+        // after end() returns
+        waitForEnd(hubs);
+        long stopped = System.nanoTime();
+
+        if (!mode.equals(HUB_ONLY)
+                && server.getServiceNames().length < services) {
+            throw new Exception("not all synthetic services were created");
+        }
+
+        return new long[] { ready - start, stopped - ending };
+    }
+
+    /**
+     * Returns the hub threads started since the given set of threads was
+     * taken.
+     */
+    private static List<Thread> getNewHubs(Set<Thread> before) {
+        List<Thread> result = new ArrayList<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread instanceof Hub && !before.contains(thread)) {
+                result.add(thread);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Waits until the given hub threads of an ended server have ended.
+     */
+    private static void waitForEnd(List<Thread> hubs) throws Exception {
+        long deadline = System.currentTimeMillis() + STOP_TIMEOUT;
+        for (Thread hub : hubs) {
+            long timeout = deadline - System.currentTimeMillis();
+            if (timeout > 0) {
+                hub.join(timeout);
+            }
+            if (hub.isAlive()) {
+                throw new Exception("hub of server did not end within "
+                        + STOP_TIMEOUT + " ms after the server was ended");
+            }
+        }
+    }
+
+    /**
+     * Nearest rank percentile of the given sorted values.
+     */
+    private static long percentile(long[] sorted, int percentile) {
+        int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static String toMillis(long nanos) {
+        return Double.toString(nanos / 1000000.0);
+    }
+
+    private static void addPercentiles(Map<String, String> report,
+            String prefix, long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+
+        long total = 0;
+        for (long time : sorted) {
+            total += time;
+        }
+
+        report.put(prefix + ".min", toMillis(sorted[0]));
+        for (int percentile : PERCENTILES) {
+            String name = percentile == 100 ? "max" : "p" + percentile;
+            report.put(prefix + "." + name, toMillis(percentile(sorted,
+                    percentile)));
+        }
+        report.put(prefix + ".mean", toMillis(total / sorted.length));
+    }
+
+    private void run(String mode, int warmups, int iterations,
+            Map<String, String> report) throws Exception {
+        for (int i = 0; i < warmups; i++) {
+            cycle(mode);
+        }
+
+        long[] ready = new long[iterations];
+        long[] stopped = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long[] times = cycle(mode);
+            ready[i] = times[0];
+            stopped[i] = times[1];
+        }
+
+        addPercentiles(report, mode + ".ready", ready);
+        addPercentiles(report, mode + ".stopped", stopped);
+    }
+
+    /**
+     * Returns a description of each result which exceeds its threshold. A
+     * threshold applies to the key equal to it, and to the keys ending with
+     * "." and it (so "ready.p90" applies to all modes).
+     */
+    private static List<String> check(Map<String, String> report,
+            Map<String, Double> thresholds) {
+        List<String> result = new ArrayList<String>();
+
+        for (Map.Entry<String, Double> threshold : thresholds.entrySet()) {
+            boolean found = false;
+            for (Map.Entry<String, String> entry : report.entrySet()) {
+                String key = entry.getKey();
+                if (!key.equals(threshold.getKey())
+                        && !key.endsWith("." + threshold.getKey())) {
+                    continue;
+                }
+                found = true;
+
+                double value = Double.parseDouble(entry.getValue());
+                if (value > threshold.getValue()) {
+                    result.add(key + " = " + entry.getValue() + " ms > "
+                            + threshold.getValue() + " ms");
+                }
+            }
+            if (!found) {
+                result.add("threshold " + threshold.getKey()
+                        + " does not match any result");
+            }
+        }
+
+        return result;
+    }
+
+    private static void printUsage(PrintStream out) {
+        out.println("Benchmark of starting and ending a server.");
+        out.println();
+        out.println("USAGE: StartupBenchmark [OPTIONS]");
+        out.println();
+        out.println("--iterations N\t\t\tMeasured cycles per mode (default 20).");
+        out.println("--warmups N\t\t\tUnmeasured cycles per mode (default 3).");
+        out
+                .println("--services N\t\t\tSynthetic services of a normal server (default 10).");
+        out
+                .println("--create-delay MS\t\tTime to create a synthetic service (default 0).");
+        out
+                .println("--end-delay MS\t\t\tTime to end a synthetic service (default 0).");
+        out.println("--modes MODE[,MODE]\t\tModes: normal, hub-only (default both).");
+        out
+                .println("--report FILE_NAME\t\tWrite the results as KEY=VALUE lines to the given file.");
+        out
+                .println("--threshold KEY MS\t\tFail if a result (for instance ready.p90) exceeds MS.");
+        out.println();
+        out
+                .println("PROPERTY=VALUE\t\t\tSet a property of the benchmarked servers.");
+        out.println("--help | -h | /?\t\tThis message.");
+    }
+
+    /**
+     * Run the benchmark
+     */
+    public static void main(String[] args) {
+        Properties properties = new Properties();
+        int iterations = 20;
+        int warmups = 3;
+        int services = 10;
+        long createDelay = 0;
+        long endDelay = 0;
+        String[] modes = { NORMAL, HUB_ONLY };
+        String reportFile = null;
+        Map<String, Double> thresholds = new LinkedHashMap<String, Double>();
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equalsIgnoreCase("--iterations")) {
+                    iterations = Integer.parseInt(args[++i]);
+                } else if (args[i].equalsIgnoreCase("--warmups")) {
+                    warmups = Integer.parseInt(args[++i]);
+                } else if (args[i].equalsIgnoreCase("--services")) {
+                    services = Integer.parseInt(args[++i]);
+                } else if (args[i].equalsIgnoreCase("--create-delay")) {
+                    createDelay = Long.parseLong(args[++i]);
+                } else if (args[i].equalsIgnoreCase("--end-delay")) {
+                    endDelay = Long.parseLong(args[++i]);
+                } else if (args[i].equalsIgnoreCase("--modes")) {
+                    modes = args[++i].split(",");
+                } else if (args[i].equalsIgnoreCase("--report")) {
+                    reportFile = args[++i];
+                } else if (args[i].equalsIgnoreCase("--threshold")) {
+                    String key = args[++i];
+                    thresholds.put(key, Double.valueOf(args[++i]));
+                } else if (args[i].equalsIgnoreCase("--help")
+                        || args[i].equalsIgnoreCase("-help")
+                        || args[i].equalsIgnoreCase("-h")
+                        || args[i].equalsIgnoreCase("/?")) {
+                    printUsage(System.err);
+                    System.exit(0);
+                } else if (args[i].contains("=")) {
+                    String[] parts = args[i].split("=", 2);
+                    properties.setProperty(parts[0], parts[1]);
+                } else {
+                    System.err.println("Unknown argument: " + args[i]);
+                    printUsage(System.err);
+                    System.exit(1);
+                }
+            }
+        } catch (RuntimeException e) {
+            // missing or malformed value
+            System.err.println("Invalid arguments: " + e);
+            printUsage(System.err);
+            System.exit(1);
+        }
+
+        if (iterations < 1) {
+            System.err.println("need at least one iteration");
+            System.exit(1);
+        }
+
+        for (String mode : modes) {
+            if (!mode.equals(NORMAL) && !mode.equals(HUB_ONLY)) {
+                System.err.println("Unknown mode: " + mode);
+                System.exit(1);
+            }
+        }
+
+        Map<String, String> report = new LinkedHashMap<String, String>();
+        report.put("iterations", Integer.toString(iterations));
+        report.put("warmups", Integer.toString(warmups));
+        report.put("services", Integer.toString(services));
+        report.put("create.delay", Long.toString(createDelay));
+        report.put("end.delay", Long.toString(endDelay));
+
+        StartupBenchmark benchmark = new StartupBenchmark(properties,
+                services, createDelay, endDelay);
+        for (String mode : modes) {
+            try {
+                benchmark.run(mode, warmups, iterations, report);
+            } catch (Throwable e) {
+                System.err.println("Benchmark of " + mode + " server failed: "
+                        + e);
+                System.exit(1);
+            }
+        }
+
+        // thresholds are not part of the results
+        Map<String, String> results = new LinkedHashMap<String, String>(report);
+        for (Map.Entry<String, Double> threshold : thresholds.entrySet()) {
+            report.put("threshold." + threshold.getKey(), threshold
+                    .getValue().toString());
+        }
+
+        List<String> failures = check(results, thresholds);
+        report.put("passed", Boolean.toString(failures.isEmpty()));
+
+        for (Map.Entry<String, String> entry : report.entrySet()) {
+            System.out.println(entry.getKey() + "=" + entry.getValue());
+        }
+
+        if (reportFile != null) {
+            try {
+                PrintStream out = new PrintStream(new FileOutputStream(
+                        reportFile));
+                for (Map.Entry<String, String> entry : report.entrySet()) {
+                    out.println(entry.getKey() + "=" + entry.getValue());
+                }
+                out.close();
+            } catch (IOException e) {
+                System.err.println("Could not write report to " + reportFile
+                        + ": " + e);
+                System.exit(1);
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            for (String failure : failures) {
+                System.err.println("Check failed: " + failure);
+            }
+            System.exit(1);
+        }
+
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,69 @@
+package ibis.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records how long each phase of starting a server took.
+ */
+final class StartupReport {
+
+    private final long start;
+
+    private long phaseStart;
+
+    // phase name -> duration in nanoseconds, in order of completion
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+    private long total = -1;
+
+    StartupReport() {
+        start = System.nanoTime();
+        phaseStart = start;
+    }
+
+    /**
+     * Marks the end of the current phase, which is recorded under the given
+     * name. The next phase starts now.
+     */
+    synchronized void phase(String name) {
+        long now = System.nanoTime();
+        phases.put(name, now - phaseStart);
+        phaseStart = now;
+    }
+
+    /**
+     * Marks the end of the startup.
+     */
+    synchronized void done() {
+        total = System.nanoTime() - start;
+    }
+
+    private static String toMillis(long nanos) {
+        return Double.toString(nanos / 1000000.0);
+    }
+
+    /**
+     * Returns the duration of each phase, and of the startup as a whole, in
+     * milliseconds.
+     */
+    synchronized Map<String, String> toMap() {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            result.put(phase.getKey(), toMillis(phase.getValue()));
+        }
+        if (total >= 0) {
+            result.put("total", toMillis(total));
+        }
+        return result;
+    }
+
+    public String toString() {
+        String message = "Startup report (in milliseconds):";
+        for (Map.Entry<String, String> phase : toMap().entrySet()) {
+            message += "\n    " + phase.getKey() + " = " + phase.getValue();
+        }
+        return message;
+    }
+
+}
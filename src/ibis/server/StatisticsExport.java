@@ -0,0 +1,259 @@
+package ibis.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Periodically writes the statistics of all services to a memory mapped file,
+ * so tools on the same machine can read them without talking to the server.
+ * Each statistic gets a fixed slot in the file, which is updated in place
+ * only if its value changed. See StatisticsExportReader for the layout.
+ */
+final class StatisticsExport implements Runnable {
+
+    private static final Logger logger = Logger
+            .getLogger(StatisticsExport.class);
+
+    private final Map<String, Service> services;
+
+    private final File file;
+
+    private final MappedByteBuffer buffer;
+
+    private final int capacity;
+
+    // slot of each "service/key" name
+    private final Map<String, Integer> slots = new HashMap<String, Integer>();
+
+    // full name of each (truncated) name in the file
+    private final Map<String, String> names = new HashMap<String, String>();
+
+    // names not exported, as their truncated name is already used
+    private final Set<String> collisions = new HashSet<String>();
+
+    // value last written to each slot
+    private String[] values;
+
+    private boolean full = false;
+
+    private final Ticker ticker;
+
+    /**
+     * @param size
+     *            size of the file in bytes, determines the maximum number of
+     *            statistics exported.
+     */
+    StatisticsExport(Map<String, Service> services, long interval,
+            String fileName, long size) throws IOException {
+        this.services = services;
+        ticker = new Ticker(interval);
+        this.file = new File(fileName);
+
+        capacity = (int) Math.max(1,
+                (size - StatisticsExportReader.HEADER_SIZE)
+                        / StatisticsExportReader.SLOT_SIZE);
+        values = new String[capacity];
+        int length = StatisticsExportReader.HEADER_SIZE + capacity
+                * StatisticsExportReader.SLOT_SIZE;
+
+        // start with an empty file, readers may have the old one mapped
+        file.delete();
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+            buffer = randomAccessFile.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        buffer.putInt(StatisticsExportReader.VERSION_OFFSET,
+                StatisticsExportReader.VERSION);
+        buffer.putInt(StatisticsExportReader.SLOT_SIZE_OFFSET,
+                StatisticsExportReader.SLOT_SIZE);
+        buffer.putInt(StatisticsExportReader.CAPACITY_OFFSET, capacity);
+        buffer.putInt(StatisticsExportReader.USED_OFFSET, 0);
+        buffer.putInt(StatisticsExportReader.ENDED_OFFSET, 0);
+        buffer.putLong(StatisticsExportReader.TIME_OFFSET, System
+                .currentTimeMillis());
+        // written last, marks the file as valid
+        StatisticsExportReader.fence();
+        buffer.putInt(StatisticsExportReader.MAGIC_OFFSET,
+                StatisticsExportReader.MAGIC);
+
+        Thread thread = new Thread(this, "statistics export");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static byte[] encode(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * Returns the longest prefix of the given string which takes at most
+     * maxLength bytes in UTF-8.
+     */
+    private static String truncate(String string, int maxLength) {
+        byte[] bytes = encode(string);
+        if (bytes.length <= maxLength) {
+            return string;
+        }
+
+        // do not cut a character in half: back up to its first byte
+        int length = maxLength;
+        while (length > 0 && (bytes[length] & 0xC0) == 0x80) {
+            length--;
+        }
+
+        try {
+            return new String(bytes, 0, length, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new Error(e);
+        }
+    }
+
+    private void put(int offset, byte[] bytes) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        slice.put(bytes);
+    }
+
+    /**
+     * Writes a slot. The name is only written if it is not null, and should
+     * already be truncated.
+     */
+    private void write(int slot, String name, String value) {
+        int offset = StatisticsExportReader.HEADER_SIZE + slot
+                * StatisticsExportReader.SLOT_SIZE;
+        int sequenceOffset = offset + StatisticsExportReader.SEQUENCE_OFFSET;
+        long sequence = buffer.getLong(sequenceOffset);
+
+        byte[] valueBytes = encode(truncate(value,
+                StatisticsExportReader.MAX_VALUE_LENGTH));
+
+        // odd sequence: slot is being written
+        buffer.putLong(sequenceOffset, sequence + 1);
+
+        // readers check the sequence before and after reading the slot. If
+        // the stores to the slot were reordered with those to the sequence,
+        // a reader could see a half written slot with an even sequence which
+        // did not change, and take it as consistent.
+        StatisticsExportReader.fence();
+
+        if (name != null) {
+            byte[] nameBytes = encode(name);
+            buffer.putShort(offset + StatisticsExportReader.NAME_LENGTH_OFFSET,
+                    (short) nameBytes.length);
+            put(offset + StatisticsExportReader.NAME_OFFSET, nameBytes);
+        }
+        buffer.putShort(offset + StatisticsExportReader.VALUE_LENGTH_OFFSET,
+                (short) valueBytes.length);
+        put(offset + StatisticsExportReader.VALUE_OFFSET, valueBytes);
+
+        StatisticsExportReader.fence();
+        buffer.putLong(sequenceOffset, sequence + 2);
+    }
+
+    private void export(String name, String value) {
+        if (value == null) {
+            value = "null";
+        }
+
+        Integer slot = slots.get(name);
+
+        if (slot == null) {
+            if (collisions.contains(name)) {
+                return;
+            }
+
+            String truncated = truncate(name,
+                    StatisticsExportReader.MAX_NAME_LENGTH);
+            String other = names.get(truncated);
+            if (other != null) {
+                logger.warn("statistic " + name + " has the same name in "
+                        + file + " as " + other + " (" + truncated
+                        + "), not exporting it");
+                collisions.add(name);
+                return;
+            }
+
+            if (slots.size() >= capacity) {
+                if (!full) {
+                    logger.warn("statistics export file " + file
+                            + " full, not exporting " + name);
+                    full = true;
+                }
+                return;
+            }
+            slot = slots.size();
+            slots.put(name, slot);
+            names.put(truncated, name);
+
+            write(slot, truncated, value);
+            values[slot] = value;
+
+            // make the slot visible to readers, after it is written
+            StatisticsExportReader.fence();
+            buffer.putInt(StatisticsExportReader.USED_OFFSET, slots.size());
+        } else if (!value.equals(values[slot])) {
+            write(slot, null, value);
+            values[slot] = value;
+        }
+    }
+
+    private void export() {
+        for (Service service : services.values()) {
+            Map<String, String> stats;
+            try {
+                stats = service.getStats();
+            } catch (Throwable e) {
+                logger.debug("could not get statistics of " + service, e);
+                continue;
+            }
+            if (stats == null) {
+                continue;
+            }
+
+            for (Map.Entry<String, String> entry : stats.entrySet()) {
+                export(service.getServiceName() + "/" + entry.getKey(), entry
+                        .getValue());
+            }
+        }
+
+        buffer.putLong(StatisticsExportReader.TIME_OFFSET, System
+                .currentTimeMillis());
+    }
+
+    void end() {
+        ticker.end();
+    }
+
+    public void run() {
+        export();
+        while (ticker.waitForNext()) {
+            export();
+        }
+        buffer.putInt(StatisticsExportReader.ENDED_OFFSET, 1);
+        buffer.force();
+    }
+
+}
@@ -0,0 +1,268 @@
+package ibis.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads the statistics a server exports to a memory mapped file (see the
+ * ibis.server.stats.export property). Reading does not involve the server
+ * at all, and does not need any system calls once the file is mapped.
+ *
+ * The file starts with a header of HEADER_SIZE bytes, followed by slots of
+ * SLOT_SIZE bytes, one for each statistic. All numbers are big endian.
+ *
+ * <pre>
+ * header: int magic, int version, int slot size, int slot capacity,
+ *         int slots used, int ended (1 after the server stopped),
+ *         long time of last update (ms since the epoch)
+ * slot:   long sequence, short name length, short value length,
+ *         name (service + &quot;/&quot; + key, UTF-8), value (UTF-8)
+ * </pre>
+ *
+ * A slot is only ever used for a single statistic. The sequence of a slot is
+ * odd while the server is updating it. Readers retry if the sequence is odd,
+ * or changed while they were reading the slot. Names and values too long for
+ * a slot are truncated (at a character boundary).
+ */
+public final class StatisticsExportReader {
+
+    static final int MAGIC = 0x49425358; // "IBSX"
+
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 64;
+
+    static final int SLOT_SIZE = 128;
+
+    static final int MAX_NAME_LENGTH = 72;
+
+    static final int MAX_VALUE_LENGTH = SLOT_SIZE - 12 - MAX_NAME_LENGTH;
+
+    // header offsets
+
+    static final int MAGIC_OFFSET = 0;
+
+    static final int VERSION_OFFSET = 4;
+
+    static final int SLOT_SIZE_OFFSET = 8;
+
+    static final int CAPACITY_OFFSET = 12;
+
+    static final int USED_OFFSET = 16;
+
+    static final int ENDED_OFFSET = 20;
+
+    static final int TIME_OFFSET = 24;
+
+    // slot offsets
+
+    static final int SEQUENCE_OFFSET = 0;
+
+    static final int NAME_LENGTH_OFFSET = 8;
+
+    static final int VALUE_LENGTH_OFFSET = 10;
+
+    static final int NAME_OFFSET = 12;
+
+    static final int VALUE_OFFSET = NAME_OFFSET + MAX_NAME_LENGTH;
+
+    // number of times a slot is read before giving up
+    private static final int MAX_ATTEMPTS = 1000;
+
+    // see fence()
+    private static volatile int barrier = 0;
+
+    private final MappedByteBuffer buffer;
+
+    private final int capacity;
+
+    private final byte[] nameBytes = new byte[MAX_NAME_LENGTH];
+
+    private final byte[] valueBytes = new byte[MAX_VALUE_LENGTH];
+
+    public StatisticsExportReader(String fileName) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(fileName), "r");
+        try {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    file.length());
+        } finally {
+            // mapping stays valid after the file is closed
+            file.close();
+        }
+
+        if (buffer.capacity() < HEADER_SIZE
+                || buffer.getInt(MAGIC_OFFSET) != MAGIC) {
+            throw new IOException(fileName
+                    + " is not a statistics export file");
+        }
+        if (buffer.getInt(VERSION_OFFSET) != VERSION) {
+            throw new IOException("unsupported version "
+                    + buffer.getInt(VERSION_OFFSET) + " of " + fileName);
+        }
+        if (buffer.getInt(SLOT_SIZE_OFFSET) != SLOT_SIZE) {
+            throw new IOException("unsupported slot size "
+                    + buffer.getInt(SLOT_SIZE_OFFSET) + " in " + fileName);
+        }
+
+        capacity = Math.min(buffer.getInt(CAPACITY_OFFSET), (buffer
+                .capacity() - HEADER_SIZE)
+                / SLOT_SIZE);
+    }
+
+    /**
+     * Keeps the accesses to a mapped file before the call from being
+     * reordered (by the compiler or the processor) with those after it. Plain
+     * accesses before a volatile write cannot move below it, those after a
+     * volatile read cannot move above it, and the write and read cannot be
+     * swapped. As the JVM implements this with a full fence, it also orders
+     * the accesses as seen by another process, which Java 5 has no explicit
+     * fences for.
+     */
+    static int fence() {
+        barrier = 0;
+        return barrier;
+    }
+
+    /**
+     * Returns the time (in milliseconds since the epoch) the server last
+     * updated the file.
+     */
+    public long getLastUpdate() {
+        return buffer.getLong(TIME_OFFSET);
+    }
+
+    /**
+     * Returns true if the server exporting the statistics has stopped.
+     */
+    public boolean hasEnded() {
+        return buffer.getInt(ENDED_OFFSET) != 0;
+    }
+
+    private static String decode(byte[] bytes, int length) {
+        try {
+            return new String(bytes, 0, length, "UTF-8");
+        } catch (IOException e) {
+            // UTF-8 is always supported
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * Reads a single slot.
+     *
+     * @return { name, value } or null if the slot could not be read
+     *         consistently.
+     */
+    private String[] readSlot(int slot) {
+        int offset = HEADER_SIZE + slot * SLOT_SIZE;
+
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            long sequence = buffer.getLong(offset + SEQUENCE_OFFSET);
+            if ((sequence & 1) != 0) {
+                // being written
+                Thread.yield();
+                continue;
+            }
+            // do not read the slot before the sequence
+            fence();
+
+            int nameLength = buffer.getShort(offset + NAME_LENGTH_OFFSET);
+            int valueLength = buffer.getShort(offset + VALUE_LENGTH_OFFSET);
+            if (nameLength < 0 || nameLength > MAX_NAME_LENGTH
+                    || valueLength < 0 || valueLength > MAX_VALUE_LENGTH) {
+                continue;
+            }
+
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(offset + NAME_OFFSET);
+            slice.get(nameBytes, 0, nameLength);
+            slice.position(offset + VALUE_OFFSET);
+            slice.get(valueBytes, 0, valueLength);
+
+            // do not read the sequence again before the slot
+            fence();
+            if (buffer.getLong(offset + SEQUENCE_OFFSET) == sequence) {
+                return new String[] { decode(nameBytes, nameLength),
+                        decode(valueBytes, valueLength) };
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads all statistics currently in the file.
+     *
+     * @return service name -> key -> value
+     */
+    public synchronized Map<String, Map<String, String>> read() {
+        Map<String, Map<String, String>> result = new TreeMap<String, Map<String, String>>();
+
+        int used = Math.min(buffer.getInt(USED_OFFSET), capacity);
+        // do not read the slots before the number used
+        fence();
+        for (int i = 0; i < used; i++) {
+            String[] slot = readSlot(i);
+            if (slot == null) {
+                continue;
+            }
+
+            int separator = slot[0].indexOf('/');
+            if (separator < 0) {
+                continue;
+            }
+            String service = slot[0].substring(0, separator);
+            String key = slot[0].substring(separator + 1);
+
+            Map<String, String> stats = result.get(service);
+            if (stats == null) {
+                stats = new TreeMap<String, String>();
+                result.put(service, stats);
+            }
+            stats.put(key, slot[1]);
+        }
+
+        return result;
+    }
+
+    /**
+     * Prints the statistics in the given export file, once, or every
+     * INTERVAL milliseconds.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: StatisticsExportReader FILE [INTERVAL]");
+            System.exit(1);
+        }
+
+        StatisticsExportReader reader = new StatisticsExportReader(args[0]);
+
+        long interval = 0;
+        if (args.length == 2) {
+            interval = Long.parseLong(args[1]);
+        }
+
+        while (true) {
+            long time = reader.getLastUpdate();
+            for (Map.Entry<String, Map<String, String>> service : reader
+                    .read().entrySet()) {
+                for (Map.Entry<String, String> entry : service.getValue()
+                        .entrySet()) {
+                    System.out.println(time + "," + service.getKey() + ","
+                            + entry.getKey() + "," + entry.getValue());
+                }
+            }
+
+            if (interval <= 0 || reader.hasEnded()) {
+                return;
+            }
+            Thread.sleep(interval);
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+package ibis.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps a bounded history of the numeric statistics of all services. Each
+ * statistic is sampled at a fixed interval into a ring buffer of primitives,
+ * so memory use is fixed and sampling does not allocate per sample.
+ */
+final class StatisticsHistory implements Runnable {
+
+    private static final Logger logger = Logger
+            .getLogger(StatisticsHistory.class);
+
+    // maximum number of statistics remembered per service
+    private static final int MAX_SERIES = 256;
+
+    /**
+     * Ring buffer with the samples of a single statistic.
+     */
+    private static final class Series {
+
+        private final long[] times;
+
+        private final double[] values;
+
+        private int next = 0;
+
+        private int count = 0;
+
+        Series(int size) {
+            times = new long[size];
+            values = new double[size];
+        }
+
+        void add(long time, double value) {
+            times[next] = time;
+            values[next] = value;
+            next = (next + 1) % times.length;
+            if (count < times.length) {
+                count++;
+            }
+        }
+
+        StatisticsSamples get(long from, long to) {
+            int first = (next - count + times.length) % times.length;
+
+            int matches = 0;
+            for (int i = 0; i < count; i++) {
+                long time = times[(first + i) % times.length];
+                if (time >= from && time <= to) {
+                    matches++;
+                }
+            }
+
+            long[] resultTimes = new long[matches];
+            double[] resultValues = new double[matches];
+            int j = 0;
+            for (int i = 0; i < count; i++) {
+                int index = (first + i) % times.length;
+                if (times[index] >= from && times[index] <= to) {
+                    resultTimes[j] = times[index];
+                    resultValues[j] = values[index];
+                    j++;
+                }
+            }
+            return new StatisticsSamples(resultTimes, resultValues);
+        }
+    }
+
+    private final Map<String, Service> services;
+
+    private final int size;
+
+    // service name -> statistic name -> samples
+    private final Map<String, Map<String, Series>> history = new HashMap<String, Map<String, Series>>();
+
+    private final Ticker ticker;
+
+    StatisticsHistory(Map<String, Service> services, int size, long interval) {
+        this.services = services;
+        this.size = size;
+        ticker = new Ticker(interval);
+
+        Thread thread = new Thread(this, "statistics history");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void sample() {
+        for (Service service : services.values()) {
+            Map<String, String> stats;
+            try {
+                stats = service.getStats();
+            } catch (Throwable e) {
+                logger.debug("could not get statistics of " + service, e);
+                continue;
+            }
+            if (stats == null) {
+                continue;
+            }
+
+            long now = System.currentTimeMillis();
+
+            synchronized (this) {
+                Map<String, Series> serviceHistory = history.get(service
+                        .getServiceName());
+                if (serviceHistory == null) {
+                    serviceHistory = new HashMap<String, Series>();
+                    history.put(service.getServiceName(), serviceHistory);
+                }
+
+                for (Map.Entry<String, String> entry : stats.entrySet()) {
+                    double value = StatisticsValues.parse(entry.getValue());
+                    if (Double.isNaN(value)) {
+                        continue;
+                    }
+
+                    Series series = serviceHistory.get(entry.getKey());
+                    if (series == null) {
+                        if (serviceHistory.size() >= MAX_SERIES) {
+                            continue;
+                        }
+                        series = new Series(size);
+                        serviceHistory.put(entry.getKey(), series);
+                    }
+                    series.add(now, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the samples of all statistics of the given service taken
+     * between from and to (inclusive, in milliseconds since the epoch), or
+     * null if no history for the service exists.
+     */
+    synchronized Map<String, StatisticsSamples> get(String serviceName,
+            long from, long to) {
+        Map<String, Series> serviceHistory = history.get(serviceName);
+
+        if (serviceHistory == null) {
+            return null;
+        }
+
+        Map<String, StatisticsSamples> result = new HashMap<String, StatisticsSamples>();
+        for (Map.Entry<String, Series> entry : serviceHistory.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get(from, to));
+        }
+        return result;
+    }
+
+    void end() {
+        ticker.end();
+    }
+
+    public void run() {
+        while (ticker.waitForNext()) {
+            sample();
+        }
+    }
+
+}
@@ -0,0 +1,279 @@
+package ibis.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Periodically prints the statistics of all services, as comma separated
+ * lines of "time,service,key,value,delta,rate" (fields are quoted as in
+ * RFC 4180 if needed). For numeric values the difference with the previous
+ * interval, and the rate of change per second are also printed. Output goes
+ * to a stream, or to a file which is rolled over once it reaches a maximum
+ * size.
+ */
+final class StatisticsPrinter implements Runnable {
+
+    private static final Logger logger = Logger
+            .getLogger(StatisticsPrinter.class);
+
+    private static final String HEADER = "time,service,key,value,delta,rate";
+
+    private final Map<String, Service> services;
+
+    // output stream, or null if printing to a file
+    private final PrintStream stream;
+
+    private final File file;
+
+    private final long maxFileSize;
+
+    private final int maxFiles;
+
+    private Writer writer = null;
+
+    private long fileSize = 0;
+
+    private boolean headerPrinted = false;
+
+    // reused for every line printed
+    private final StringBuilder line = new StringBuilder();
+
+    // service name -> key -> { value, time } of the previous interval
+    private final Map<String, Map<String, double[]>> previous = new HashMap<String, Map<String, double[]>>();
+
+    private final Ticker ticker;
+
+    /**
+     * Print statistics to the given stream.
+     */
+    StatisticsPrinter(Map<String, Service> services, long interval,
+            PrintStream stream) {
+        this.services = services;
+        ticker = new Ticker(interval);
+        this.stream = stream;
+        this.file = null;
+        this.maxFileSize = 0;
+        this.maxFiles = 0;
+
+        start();
+    }
+
+    /**
+     * Print statistics to the given file, keeping at most maxFiles old files
+     * of (about) maxFileSize bytes each.
+     */
+    StatisticsPrinter(Map<String, Service> services, long interval,
+            String fileName, long maxFileSize, int maxFiles) {
+        this.services = services;
+        ticker = new Ticker(interval);
+        this.stream = null;
+        this.file = new File(fileName);
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+
+        start();
+    }
+
+    private void start() {
+        Thread thread = new Thread(this, "statistics printer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Moves FILE to FILE.1, FILE.1 to FILE.2 etc, and deletes the oldest.
+     */
+    private void roll() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+
+        for (int i = maxFiles; i > 0; i--) {
+            File from = (i == 1) ? file : new File(file.getPath() + "."
+                    + (i - 1));
+            File to = new File(file.getPath() + "." + i);
+
+            if (from.exists()) {
+                to.delete();
+                if (!from.renameTo(to)) {
+                    logger.warn("could not rename " + from + " to " + to);
+                }
+            }
+        }
+        if (maxFiles == 0) {
+            file.delete();
+        }
+    }
+
+    private void write(StringBuilder line) throws IOException {
+        if (stream != null) {
+            stream.println(line);
+            return;
+        }
+
+        if (writer != null && fileSize >= maxFileSize) {
+            roll();
+        }
+
+        if (writer == null) {
+            boolean exists = file.exists() && file.length() > 0;
+            writer = new OutputStreamWriter(new FileOutputStream(file, true));
+            fileSize = file.length();
+            if (!exists) {
+                writer.write(HEADER);
+                writer.write('\n');
+                fileSize += HEADER.length() + 1;
+            }
+        }
+
+        writer.append(line);
+        writer.write('\n');
+        fileSize += line.length() + 1;
+    }
+
+    /**
+     * Appends the given field to a line, quoted (as in RFC 4180) if it
+     * contains a comma, quote or line break.
+     */
+    private static void appendField(StringBuilder line, String field) {
+        if (field == null) {
+            line.append("null");
+            return;
+        }
+
+        boolean quote = false;
+        for (int i = 0; i < field.length() && !quote; i++) {
+            char c = field.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            line.append(field);
+            return;
+        }
+
+        line.append('"');
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '"') {
+                line.append('"');
+            }
+            line.append(c);
+        }
+        line.append('"');
+    }
+
+    private void print() throws IOException {
+        if (stream != null && !headerPrinted) {
+            stream.println(HEADER);
+            headerPrinted = true;
+        }
+
+        for (Service service : services.values()) {
+            Map<String, String> stats;
+            try {
+                stats = service.getStats();
+            } catch (Throwable e) {
+                logger.debug("could not get statistics of " + service, e);
+                continue;
+            }
+            if (stats == null) {
+                continue;
+            }
+
+            long now = System.currentTimeMillis();
+
+            Map<String, double[]> last = previous.get(service
+                    .getServiceName());
+            if (last == null) {
+                last = new HashMap<String, double[]>();
+                previous.put(service.getServiceName(), last);
+            }
+
+            for (Map.Entry<String, String> entry : stats.entrySet()) {
+                String value = entry.getValue();
+
+                line.setLength(0);
+                line.append(now).append(',');
+                appendField(line, service.getServiceName());
+                line.append(',');
+                appendField(line, entry.getKey());
+                line.append(',');
+                appendField(line, value);
+                line.append(',');
+
+                // delta and rate, only if there is a previous numeric value
+                double rate = Double.NaN;
+                double number = StatisticsValues.parse(value);
+                if (!Double.isNaN(number)) {
+                    double[] previousSample = last.get(entry.getKey());
+                    if (previousSample == null) {
+                        previousSample = new double[2];
+                        last.put(entry.getKey(), previousSample);
+                    } else {
+                        double delta = number - previousSample[0];
+                        double seconds = (now - previousSample[1]) / 1000.0;
+                        line.append(delta);
+                        if (seconds > 0) {
+                            rate = delta / seconds;
+                        }
+                    }
+                    previousSample[0] = number;
+                    previousSample[1] = now;
+                }
+                line.append(',');
+                if (!Double.isNaN(rate)) {
+                    line.append(rate);
+                }
+
+                write(line);
+            }
+        }
+
+        if (stream != null) {
+            stream.flush();
+        } else if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    void end() {
+        ticker.end();
+    }
+
+    public void run() {
+        while (ticker.waitForNext()) {
+            try {
+                print();
+            } catch (IOException e) {
+                logger.warn("could not print statistics", e);
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException e2) {
+                        // IGNORE
+                    }
+                    // try again with a fresh file next time
+                    writer = null;
+                }
+            }
+        }
+
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                // IGNORE
+            }
+        }
+    }
+
+}
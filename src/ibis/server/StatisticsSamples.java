@@ -0,0 +1,42 @@
+package ibis.server;
+
+/**
+ * Samples of a single statistic over time.
+ */
+public final class StatisticsSamples {
+
+    /**
+     * Time (in milliseconds since the epoch) at which each sample was taken.
+     */
+    public final long[] times;
+
+    /**
+     * Value of each sample.
+     */
+    public final double[] values;
+
+    public StatisticsSamples(long[] times, double[] values) {
+        if (times.length != values.length) {
+            throw new IllegalArgumentException(
+                    "number of times and values differ");
+        }
+        this.times = times;
+        this.values = values;
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    public String toString() {
+        String result = "";
+        for (int i = 0; i < times.length; i++) {
+            if (i > 0) {
+                result += ", ";
+            }
+            result += times[i] + "=" + values[i];
+        }
+        return "[" + result + "]";
+    }
+
+}
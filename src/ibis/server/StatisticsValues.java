@@ -0,0 +1,34 @@
+package ibis.server;
+
+/**
+ * Helpers for the values of statistics, which services give as strings.
+ */
+final class StatisticsValues {
+
+    private StatisticsValues() {
+        // DO NOT USE
+    }
+
+    /**
+     * Returns the value of a statistic as a number, or NaN if it is not a
+     * number.
+     */
+    static double parse(String value) {
+        if (value == null || value.length() == 0) {
+            return Double.NaN;
+        }
+
+        // cheap check first, most values which are not numbers fail it
+        char c = value.charAt(0);
+        if (!(c >= '0' && c <= '9') && c != '-' && c != '.') {
+            return Double.NaN;
+        }
+
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+}
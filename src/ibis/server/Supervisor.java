@@ -0,0 +1,618 @@
+package ibis.server;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+import ibis.server.remote.RemoteClient;
+import ibis.server.remote.StreamForwarder;
+
+/**
+ * Runs services in child JVMs, so they do not share a heap (and garbage
+ * collector) with the server and each other. Each child is a server started
+ * in remote mode, controlled through a RemoteClient over its standard in and
+ * out. Children which exit are restarted. The services of a child are added
+ * to the server as proxies, which serve the statistics last retrieved from
+ * the child, so a slow child does not hold up the server. A child which
+ * repeatedly does not reply to a retrieval in time is considered hung, and
+ * is killed (and thus restarted). The pseudo services of a child (such as "runtime") are added as
+ * "NAME@SERVICE_CLASS", so they do not collide with those of the server.
+ */
+final class Supervisor {
+
+    private static final Logger logger = Logger.getLogger(Supervisor.class);
+
+    // properties of the server which are not passed on to a child, as the
+    // child sets them itself, or they would make the child use the same
+    // files as the server
+    private static final String[] CHILD_OVERRIDES = {
+            ServerProperties.PORT, ServerProperties.REMOTE,
+            ServerProperties.HUB_ONLY, ServerProperties.START_HUB,
+            ServerProperties.HUB_ADDRESSES, ServerProperties.HUB_ADDRESS_FILE,
+            ServerProperties.HUB_JOURNAL, ServerProperties.HUB_PROBE_INTERVAL,
+            ServerProperties.PRINT_STATS, ServerProperties.STATS_FILE,
+            ServerProperties.STATS_EXPORT, ServerProperties.PRINT_EVENTS,
+            ServerProperties.EVENTS_FILE,
+            ServerProperties.PRINT_STARTUP_REPORT,
+            ServerProperties.JMX,
+            ServerProperties.SERVICES_INCLUDE,
+            ServerProperties.SERVICES_EXCLUDE,
+            ServerProperties.SUPERVISED_SERVICES, };
+
+    // number of retrievals of statistics in a row a child does not reply to
+    // in time before it is considered hung
+    private static final int MAX_TIMEOUTS = 3;
+
+    // services every server adds itself
+    private static final String[] PSEUDO_SERVICES = { RuntimeService.NAME,
+            HubProber.NAME, };
+
+    /**
+     * Standard error of the server, which is not closed if the output of a
+     * child ends.
+     */
+    private static class ErrorStream extends FilterOutputStream {
+        ErrorStream() {
+            super(System.err);
+        }
+
+        public void write(byte[] buffer, int offset, int length)
+                throws IOException {
+            out.write(buffer, offset, length);
+        }
+
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * Proxy for a service running in a child.
+     */
+    private static class ChildService implements Service {
+        private final String name;
+
+        // name of the service in the child
+        private final String childName;
+
+        private final Child child;
+
+        ChildService(String name, String childName, Child child) {
+            this.name = name;
+            this.childName = childName;
+            this.child = child;
+        }
+
+        public String getServiceName() {
+            return name;
+        }
+
+        public Map<String, String> getStats() {
+            Map<String, String> result = child.getStats(childName);
+
+            if (result == null) {
+                result = new HashMap<String, String>();
+                result.put("supervisor.state", "down");
+            } else {
+                result.put("supervisor.state", "up");
+            }
+
+            result.put("supervisor.restarts", Integer.toString(child
+                    .getRestarts()));
+            result.put("supervisor.address", child.getAddress());
+
+            return result;
+        }
+
+        public void end(long deadline) {
+            // children are ended by the supervisor
+        }
+
+        public String toString() {
+            return name + " (in child " + child.getAddress() + ")";
+        }
+    }
+
+    private final class Child implements Runnable {
+        private final String className;
+
+        // names of the services of this child added to the server
+        private final Set<String> names = new HashSet<String>();
+
+        private Process process = null;
+
+        private RemoteClient client = null;
+
+        private String address = null;
+
+        // names of the services in the child
+        private String[] serviceNames = new String[0];
+
+        // statistics last retrieved from the child, by name in the child
+        private Map<String, Map<String, String>> stats = new HashMap<String, Map<String, String>>();
+
+        private int restarts = 0;
+
+        // retrievals of statistics in a row which timed out
+        private int timeouts = 0;
+
+        private boolean attempted = false;
+
+        private boolean running = false;
+
+        private boolean ended = false;
+
+        // paces the retrieval of statistics
+        private final Ticker ticker;
+
+        Child(String className) {
+            this.className = className;
+            ticker = new Ticker(statisticsInterval);
+        }
+
+        synchronized RemoteClient getClient() {
+            return client;
+        }
+
+        synchronized String getAddress() {
+            return address;
+        }
+
+        synchronized int getRestarts() {
+            return restarts;
+        }
+
+        /**
+         * Returns the statistics last retrieved of the given service, or
+         * null if they are not available.
+         */
+        synchronized Map<String, String> getStats(String childName) {
+            Map<String, String> result = stats.get(childName);
+            if (result == null) {
+                return null;
+            }
+            return new HashMap<String, String>(result);
+        }
+
+        private void refreshStats() {
+            final RemoteClient client;
+            final String[] serviceNames;
+            Process process;
+            synchronized (this) {
+                client = this.client;
+                serviceNames = this.serviceNames;
+                process = this.process;
+            }
+            if (client == null) {
+                return;
+            }
+
+            // the client blocks until the child replies, so retrieve the
+            // statistics in another thread, and give up at the timeout
+            Future<Map<String, Map<String, String>>> future = executor
+                    .submit(new Callable<Map<String, Map<String, String>>>() {
+                        public Map<String, Map<String, String>> call() {
+                            Map<String, Map<String, String>> result = new HashMap<String, Map<String, String>>();
+                            for (String serviceName : serviceNames) {
+                                try {
+                                    result.put(serviceName, client
+                                            .getStats(serviceName));
+                                } catch (IOException e) {
+                                    logger.debug("could not get statistics of "
+                                            + serviceName + " from child for "
+                                            + className, e);
+                                }
+                            }
+                            return result;
+                        }
+                    });
+
+            Map<String, Map<String, String>> stats;
+            try {
+                stats = future.get(statisticsTimeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                int timeouts;
+                synchronized (this) {
+                    timeouts = ++this.timeouts;
+                }
+                if (timeouts < MAX_TIMEOUTS) {
+                    logger.debug("child for " + className
+                            + " did not reply to retrieval of statistics in "
+                            + statisticsTimeout + " ms");
+                    return;
+                }
+                // the retrieval still blocked ends as the child is killed
+                logger.warn("child for " + className + " did not reply to "
+                        + timeouts + " retrievals of statistics in a row,"
+                        + " killing it");
+                if (process != null) {
+                    process.destroy();
+                }
+                return;
+            } catch (ExecutionException e) {
+                logger.debug("could not get statistics from child for "
+                        + className, e.getCause());
+                return;
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            synchronized (this) {
+                this.stats = stats;
+                timeouts = 0;
+            }
+        }
+
+        private List<String> getCommand() {
+            List<String> result = new ArrayList<String>();
+
+            result.add(System.getProperty("java.home") + File.separator
+                    + "bin" + File.separator + "java");
+            if (jvmOptions != null) {
+                for (String option : jvmOptions.trim().split("\\s+")) {
+                    if (!option.equals("")) {
+                        result.add(option);
+                    }
+                }
+            }
+            result.add("-cp");
+            result.add(System.getProperty("java.class.path"));
+            result.add(Server.class.getName());
+
+            for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+                if (entry.getKey() instanceof String
+                        && entry.getValue() instanceof String
+                        && !overridden(((String) entry.getKey()))) {
+                    result.add(entry.getKey() + "=" + entry.getValue());
+                }
+            }
+
+            // join the hubs of the server, so the child can be reached
+            String hubs = concat(server.getHubs());
+            if (hubs.equals("")) {
+                hubs = properties.getProperty(ServerProperties.HUB_ADDRESSES);
+            }
+            if (hubs != null && !hubs.equals("")) {
+                result.add(ServerProperties.HUB_ADDRESSES + "=" + hubs);
+            }
+
+            result.add(ServerProperties.REMOTE + "=true");
+            result.add(ServerProperties.HUB_ONLY + "=false");
+            result.add(ServerProperties.START_HUB + "=false");
+            result.add(ServerProperties.PORT + "=0");
+            result.add(ServerProperties.HUB_PROBE_INTERVAL + "=0");
+            result.add(ServerProperties.SERVICES_INCLUDE + "=" + className);
+
+            return result;
+        }
+
+        private void start() throws IOException {
+            List<String> command = getCommand();
+            if (logger.isDebugEnabled()) {
+                logger.debug("starting child: " + command);
+            }
+
+            Process process = new ProcessBuilder(command).start();
+            synchronized (this) {
+                this.process = process;
+                running = true;
+                timeouts = 0;
+            }
+
+            new StreamForwarder(process.getErrorStream(), new ErrorStream());
+
+            RemoteClient client = new RemoteClient(process.getInputStream(),
+                    process.getOutputStream());
+
+            // waits until the child is up
+            String[] serviceNames = client.getServiceNames();
+            String address = client.getLocalAddress();
+
+            synchronized (this) {
+                this.client = client;
+                this.address = address;
+                this.serviceNames = serviceNames;
+            }
+
+            if (serviceNames.length == 0) {
+                logger.warn("child for " + className + " has no services");
+            }
+
+            for (String childName : serviceNames) {
+                String name = childName;
+                if (isPseudoService(childName)) {
+                    name = childName + "@" + className;
+                }
+
+                if (names.contains(name)) {
+                    continue;
+                }
+                if (server.addChildService(new ChildService(name, childName,
+                        this))) {
+                    names.add(name);
+                } else {
+                    logger.warn("service " + name + " of child for "
+                            + className + " already exists in server");
+                }
+            }
+
+            refreshStats();
+
+            logger.info("started child for " + className + " at " + address);
+        }
+
+        private synchronized void setAttempted() {
+            attempted = true;
+            notifyAll();
+        }
+
+        synchronized void waitForStart(long deadline) {
+            long now = System.currentTimeMillis();
+            while (!attempted && now < deadline) {
+                try {
+                    wait(deadline - now);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                now = System.currentTimeMillis();
+            }
+        }
+
+        private synchronized void exited() {
+            client = null;
+            stats = new HashMap<String, Map<String, String>>();
+            running = false;
+            notifyAll();
+        }
+
+        private synchronized boolean waitForRestart() {
+            long deadline = System.currentTimeMillis() + restartDelay;
+            long now = System.currentTimeMillis();
+            while (!ended && now < deadline) {
+                try {
+                    wait(deadline - now);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                now = System.currentTimeMillis();
+            }
+            if (ended) {
+                return false;
+            }
+            restarts++;
+            return true;
+        }
+
+        void end(long deadline) {
+            RemoteClient client;
+            synchronized (this) {
+                ended = true;
+                notifyAll();
+                client = this.client;
+            }
+            ticker.end();
+
+            if (client != null) {
+                long timeout;
+                if (deadline == Long.MAX_VALUE) {
+                    timeout = 0;
+                } else if (deadline <= System.currentTimeMillis()) {
+                    timeout = -1;
+                } else {
+                    timeout = deadline - System.currentTimeMillis();
+                }
+                try {
+                    client.end(timeout);
+                } catch (IOException e) {
+                    logger.debug("could not end child for " + className, e);
+                }
+            }
+
+            Process process;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                while (running && now < deadline) {
+                    try {
+                        wait(deadline - now);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    now = System.currentTimeMillis();
+                }
+                process = this.process;
+            }
+
+            if (process != null) {
+                process.destroy();
+            }
+        }
+
+        public void run() {
+            do {
+                try {
+                    start();
+                } catch (Throwable e) {
+                    logger.warn("could not start child for " + className, e);
+                    Process process;
+                    synchronized (this) {
+                        process = this.process;
+                    }
+                    if (process != null) {
+                        process.destroy();
+                    }
+                }
+                setAttempted();
+
+                Process process;
+                synchronized (this) {
+                    process = this.process;
+                }
+                if (process != null) {
+                    try {
+                        // refresh the statistics until the child exits, or
+                        // the supervisor is ended
+                        while (isRunning(process) && ticker.waitForNext()) {
+                            refreshStats();
+                        }
+
+                        int exitValue = process.waitFor();
+                        synchronized (this) {
+                            if (!ended) {
+                                logger.warn("child for " + className
+                                        + " exited with " + exitValue
+                                        + ", restarting in " + restartDelay
+                                        + " ms");
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        process.destroy();
+                        return;
+                    } finally {
+                        exited();
+                    }
+                }
+            } while (waitForRestart());
+        }
+    }
+
+    private final Server server;
+
+    private final Properties properties;
+
+    private final String jvmOptions;
+
+    private final long restartDelay;
+
+    private final long statisticsInterval;
+
+    private final long statisticsTimeout;
+
+    // retrieves the statistics of the children
+    private final ExecutorService executor;
+
+    private final List<Child> children = new ArrayList<Child>();
+
+    /**
+     * Starts a child for each of the given service classes.
+     *
+     * @param properties
+     *            properties given to the server, passed on to the children
+     * @param jvmOptions
+     *            options for the JVM of the children (separated by spaces),
+     *            or null
+     * @param restartDelay
+     *            time (in milliseconds) between the exit of a child and its
+     *            restart
+     * @param statisticsInterval
+     *            time (in milliseconds) between retrievals of the statistics
+     *            of the services of a child
+     * @param statisticsTimeout
+     *            time (in milliseconds) a child has to reply to a retrieval
+     *            of statistics
+     */
+    Supervisor(Server server, Properties properties, String[] serviceClasses,
+            String jvmOptions, long restartDelay, long statisticsInterval,
+            long statisticsTimeout) {
+        this.server = server;
+        this.properties = properties;
+        this.jvmOptions = jvmOptions;
+        this.restartDelay = restartDelay;
+        this.statisticsInterval = statisticsInterval;
+        this.statisticsTimeout = statisticsTimeout;
+
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                        "supervisor statistics retriever");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        for (String serviceClass : serviceClasses) {
+            Child child = new Child(serviceClass);
+            children.add(child);
+
+            Thread thread = new Thread(child, "supervisor of " + serviceClass);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static boolean overridden(String key) {
+        for (String override : CHILD_OVERRIDES) {
+            if (key.equals(override)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isRunning(Process process) {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    private static boolean isPseudoService(String name) {
+        for (String pseudoService : PSEUDO_SERVICES) {
+            if (name.equals(pseudoService)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String concat(String[] strings) {
+        String result = "";
+        for (String string : strings) {
+            if (result.length() > 0) {
+                result += ",";
+            }
+            result += string;
+        }
+        return result;
+    }
+
+    /**
+     * Waits until all children started (or failed to start) once, so their
+     * services are known.
+     */
+    void waitForStart(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        for (Child child : children) {
+            child.waitForStart(deadline);
+        }
+    }
+
+    /**
+     * Ends all children, killing those still running at the deadline.
+     */
+    void end(long deadline) {
+        for (Child child : children) {
+            child.end(deadline);
+        }
+        executor.shutdown();
+    }
+
+}
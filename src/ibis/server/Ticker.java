@@ -0,0 +1,54 @@
+package ibis.server;
+
+/**
+ * Paces a background thread which does something at a fixed interval, until
+ * it is ended. The thread calls waitForNext() before each round.
+ */
+final class Ticker {
+
+    private final long interval;
+
+    private boolean ended = false;
+
+    /**
+     * @param interval
+     *            time (in milliseconds) waitForNext() waits, should be
+     *            positive
+     */
+    Ticker(long interval) {
+        if (interval <= 0) {
+            // the thread would never wait
+            throw new IllegalArgumentException(
+                    "interval should be positive, not " + interval);
+        }
+        this.interval = interval;
+    }
+
+    /**
+     * Waits for an interval, or until ended.
+     *
+     * @return false if ended, or interrupted while waiting.
+     */
+    synchronized boolean waitForNext() {
+        long deadline = System.currentTimeMillis() + interval;
+        long now = System.currentTimeMillis();
+        while (!ended && now < deadline) {
+            try {
+                wait(deadline - now);
+            } catch (InterruptedException e) {
+                return false;
+            }
+            now = System.currentTimeMillis();
+        }
+        return !ended;
+    }
+
+    /**
+     * Ends the current and all later waits.
+     */
+    synchronized void end() {
+        ended = true;
+        notifyAll();
+    }
+
+}
@@ -8,18 +8,46 @@ public class Protocol {
 
     public static final String OPCODE_GET_HUBS = "OPCODE_GET_HUBS";
 
+    public static final String OPCODE_GET_HUB_LATENCIES = "OPCODE_GET_HUB_LATENCIES";
+
     public static final String OPCODE_GET_SERVICE_NAMES = "OPCODE_GET_SERVICE_NAMES";
     
     public static final String OPCODE_GET_STATISTICS = "OPCODE_GET_STATISTICS";
     
+    public static final String OPCODE_GET_ALL_STATISTICS = "OPCODE_GET_ALL_STATISTICS";
+
+    public static final String OPCODE_GET_STATISTICS_HISTORY = "OPCODE_GET_STATISTICS_HISTORY";
+
+    public static final String OPCODE_GET_EVENTS = "OPCODE_GET_EVENTS";
+
+    public static final String OPCODE_GET_STARTUP_REPORT = "OPCODE_GET_STARTUP_REPORT";
+
+    // conditional commands, the last generation seen is given as argument
+
+    public static final String OPCODE_GET_HUBS_IF_MODIFIED = "OPCODE_GET_HUBS_IF_MODIFIED";
+
+    public static final String OPCODE_GET_SERVICE_NAMES_IF_MODIFIED = "OPCODE_GET_SERVICE_NAMES_IF_MODIFIED";
+
+    public static final String OPCODE_GET_STATISTICS_IF_MODIFIED = "OPCODE_GET_STATISTICS_IF_MODIFIED";
+
     public static final String OPCODE_END = "OPCODE_END";
 
+    // argument denoting "no filter"
+    public static final String ANY = "*";
+
     public static final String REPLY_OK = "OK";
 
     public static final String REPLY_ERROR = "ERROR";
+
+    // reply to a conditional command if the generation given is current
+    public static final String REPLY_NOT_MODIFIED = "NOT_MODIFIED";
     
     public static final String CLIENT_COMMAND = "CLIENT_COMMAND:";
     
     public static final String SERVER_REPLY = "SERVER_REPLY:"; 
 
+    // prefix of an error reply, instead of SERVER_REPLY, so it cannot be
+    // mistaken for a data reply
+    public static final String SERVER_ERROR = "SERVER_ERROR:";
+
 }
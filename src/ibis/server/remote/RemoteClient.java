@@ -6,11 +6,18 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
 
+import ibis.server.Snapshot;
+import ibis.server.StatisticsSamples;
+
 public class RemoteClient {
 
     private static final Logger logger = Logger.getLogger(RemoteClient.class);
@@ -21,6 +28,15 @@ public class RemoteClient {
 
     private String serverAddress = null;
 
+    // results of conditional commands, reused if the server replies these
+    // are not modified
+
+    private Snapshot<String[]> hubs = null;
+
+    private Snapshot<String[]> serviceNames = null;
+
+    private final Map<String, Snapshot<Map<String, String>>> stats = new HashMap<String, Snapshot<Map<String, String>>>();
+
     /**
      * Connect to the server with the given in and output stream
      * 
@@ -59,12 +75,23 @@ public class RemoteClient {
             throw new IOException("end of stream while reading reply");
         }
 
+        if (line.startsWith(Protocol.SERVER_ERROR)) {
+            throw new IOException("server replied with error: "
+                    + line.substring(Protocol.SERVER_ERROR.length()));
+        }
+
         if (!line.startsWith(Protocol.SERVER_REPLY)) {
             throw new IOException("expected: " + Protocol.SERVER_REPLY
                     + ", got: " + line);
         }
 
-        return line.substring(Protocol.SERVER_REPLY.length()).split(" ");
+        String reply = line.substring(Protocol.SERVER_REPLY.length());
+
+        if (reply.length() == 0) {
+            return new String[0];
+        }
+
+        return reply.split(" ");
     }
 
     public synchronized void addHubs(String... hubs) throws IOException {
@@ -83,6 +110,53 @@ public class RemoteClient {
         readReply();
     }
 
+    private static Snapshot<String[]> copy(Snapshot<String[]> snapshot) {
+        return new Snapshot<String[]>(snapshot.generation, snapshot.value
+                .clone());
+    }
+
+    private static String generation(Snapshot<?> snapshot) {
+        if (snapshot == null) {
+            // no generation seen yet
+            return "-1";
+        }
+        return Long.toString(snapshot.generation);
+    }
+
+    /**
+     * Reads the reply to a conditional command.
+     * 
+     * @return null if the value is not modified, or the new value, preceded
+     *         by its generation.
+     */
+    private String[] readConditionalReply() throws IOException {
+        String[] reply = readReply();
+
+        if (reply.length == 1 && reply[0].equals(Protocol.REPLY_NOT_MODIFIED)) {
+            return null;
+        }
+
+        if (reply.length == 0) {
+            throw new IOException("generation missing from reply");
+        }
+
+        return reply;
+    }
+
+    private static long parseGeneration(String[] reply) throws IOException {
+        try {
+            return Long.parseLong(reply[0]);
+        } catch (NumberFormatException e) {
+            throw new IOException("could not parse generation: " + e);
+        }
+    }
+
+    private static String[] tail(String[] reply) {
+        String[] result = new String[reply.length - 1];
+        System.arraycopy(reply, 1, result, 0, result.length);
+        return result;
+    }
+
     /**
      * Returns the addresses of all hubs known to this server
      */
@@ -94,6 +168,37 @@ public class RemoteClient {
         return result;
     }
 
+    /**
+     * Returns the addresses of all hubs known to this server, and their
+     * generation. Only retrieves the hubs if they changed since the last
+     * call, otherwise the previous snapshot is returned. Needs a server which
+     * supports conditional commands.
+     */
+    public synchronized Snapshot<String[]> getHubsSnapshot()
+            throws IOException {
+        sendCommand(Protocol.OPCODE_GET_HUBS_IF_MODIFIED, generation(hubs));
+
+        String[] reply = readConditionalReply();
+
+        if (reply != null) {
+            hubs = new Snapshot<String[]>(parseGeneration(reply), tail(reply));
+        }
+
+        // copy, so callers cannot change the cached snapshot
+        return copy(hubs);
+    }
+
+    /**
+     * Returns the round trip time (in milliseconds) from the server to each
+     * hub it knows, "unreachable", or "unknown" if not measured yet.
+     */
+    public synchronized Map<String, String> getHubLatencies()
+            throws IOException {
+        sendCommand(Protocol.OPCODE_GET_HUB_LATENCIES);
+
+        return readMapReply();
+    }
+
     /**
      * Returns the local address of the server as a string
      */
@@ -133,6 +238,30 @@ public class RemoteClient {
         return result;
     }
 
+    /**
+     * Returns the names of all services currently in this server, and their
+     * generation. Only retrieves the names if they changed since the last
+     * call, otherwise the previous snapshot is returned. Needs a server which
+     * supports conditional commands.
+     * 
+     * @throws IOException
+     *             in case of trouble
+     */
+    public synchronized Snapshot<String[]> getServiceNamesSnapshot()
+            throws IOException {
+        sendCommand(Protocol.OPCODE_GET_SERVICE_NAMES_IF_MODIFIED,
+                generation(serviceNames));
+
+        String[] reply = readConditionalReply();
+
+        if (reply != null) {
+            serviceNames = new Snapshot<String[]>(parseGeneration(reply),
+                    tail(reply));
+        }
+
+        return copy(serviceNames);
+    }
+
     /**
      * Function to retrieve statistics for a given service
      * 
@@ -147,9 +276,205 @@ public class RemoteClient {
             throws IOException {
         sendCommand(Protocol.OPCODE_GET_STATISTICS, serviceName);
 
+        return readMapReply();
+    }
+
+    /**
+     * Function to retrieve statistics for a given service, and their
+     * generation. Only retrieves the statistics if they changed since the
+     * last call, otherwise the previous snapshot is returned. Needs a server
+     * which supports conditional commands.
+     * 
+     * @param serviceName
+     *            Name of service to get statistics of
+     * 
+     * @throws IOException
+     *             in case of trouble, or if the service does not exist.
+     */
+    public synchronized Snapshot<Map<String, String>> getStatsSnapshot(
+            String serviceName) throws IOException {
+        Snapshot<Map<String, String>> cached = stats.get(serviceName);
+
+        sendCommand(Protocol.OPCODE_GET_STATISTICS_IF_MODIFIED, serviceName,
+                generation(cached));
+
+        String[] reply;
+        try {
+            reply = readConditionalReply();
+        } catch (IOException e) {
+            // service may be gone
+            stats.remove(serviceName);
+            throw e;
+        }
+
+        if (reply != null) {
+            // unmodifiable, so callers cannot change the cached snapshot
+            cached = new Snapshot<Map<String, String>>(parseGeneration(reply),
+                    Collections.unmodifiableMap(parseMap(tail(reply))));
+            stats.put(serviceName, cached);
+        }
+
+        return cached;
+    }
+
+    /**
+     * Function to retrieve the statistics of all services in a single round
+     * trip
+     * 
+     * @return statistics for each service.
+     * @throws IOException
+     *             in case of trouble.
+     */
+    public Map<String, Map<String, String>> getAllStats() throws IOException {
+        return getAllStats(null, null);
+    }
+
+    /**
+     * Function to retrieve the statistics of multiple services in a single
+     * round trip
+     * 
+     * @param serviceNames
+     *            names of the services to get statistics of, or null for all
+     *            services
+     * @param keyPrefix
+     *            only return statistics whose key starts with this prefix, or
+     *            null for all statistics
+     * 
+     * @return statistics for each (existing) service requested.
+     * @throws IOException
+     *             in case of trouble.
+     */
+    public synchronized Map<String, Map<String, String>> getAllStats(
+            String[] serviceNames, String keyPrefix) throws IOException {
+        String services = Protocol.ANY;
+        if (serviceNames != null) {
+            services = "";
+            for (int i = 0; i < serviceNames.length; i++) {
+                if (i > 0) {
+                    services += ",";
+                }
+                services += serviceNames[i];
+            }
+        }
+
+        sendCommand(Protocol.OPCODE_GET_ALL_STATISTICS, services,
+                keyPrefix == null ? Protocol.ANY : keyPrefix);
+
+        String[] reply = readReply();
+
+        Map<String, Map<String, String>> result = new LinkedHashMap<String, Map<String, String>>();
+        // while there are _three_ strings remaining
+        for (int i = 0; i + 2 < reply.length; i += 3) {
+            Map<String, String> stats = result.get(reply[i]);
+            if (stats == null) {
+                stats = new LinkedHashMap<String, String>();
+                result.put(reply[i], stats);
+            }
+
+            String value = reply[i + 2];
+            if (value.equals("null")) {
+                value = null;
+            }
+
+            stats.put(reply[i + 1], value);
+        }
+
+        return result;
+    }
+
+    /**
+     * Function to retrieve the history of the statistics of a given service
+     * 
+     * @param serviceName
+     *            Name of service to get the statistics history of
+     * @param from
+     *            start of the time range (in milliseconds since the epoch)
+     * @param to
+     *            end of the time range (in milliseconds since the epoch)
+     * 
+     * @return samples of each statistic taken in the given time range.
+     * @throws IOException
+     *             in case of trouble.
+     */
+    public synchronized Map<String, StatisticsSamples> getStatsHistory(
+            String serviceName, long from, long to) throws IOException {
+        sendCommand(Protocol.OPCODE_GET_STATISTICS_HISTORY, serviceName, Long
+                .toString(from), Long.toString(to));
+
+        String[] reply = readReply();
+
+        Map<String, StatisticsSamples> result = new LinkedHashMap<String, StatisticsSamples>();
+        try {
+            int i = 0;
+            // while there is a key and a number of samples remaining
+            while (i + 1 < reply.length) {
+                String key = reply[i];
+                int size = Integer.parseInt(reply[i + 1]);
+                i += 2;
+
+                if (i + 2 * size > reply.length) {
+                    throw new IOException("truncated history reply");
+                }
+
+                long[] times = new long[size];
+                double[] values = new double[size];
+                for (int j = 0; j < size; j++) {
+                    times[j] = Long.parseLong(reply[i]);
+                    values[j] = Double.parseDouble(reply[i + 1]);
+                    i += 2;
+                }
+                result.put(key, new StatisticsSamples(times, values));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("could not parse history reply: " + e);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the events published by services since the previous call,
+     * formatted as "TIME SOURCE MESSAGE". Only available if the server prints
+     * events.
+     * 
+     * @throws IOException
+     *             in case of trouble.
+     */
+    public synchronized String[] getEvents() throws IOException {
+        sendCommand(Protocol.OPCODE_GET_EVENTS);
+
         String[] reply = readReply();
 
-        Map<String, String> result = new HashMap<String, String>();
+        ArrayList<String> result = new ArrayList<String>();
+        for (String event : reply) {
+            if (!event.equals("")) {
+                result.add(URLDecoder.decode(event, "UTF-8"));
+            }
+        }
+
+        return result.toArray(new String[0]);
+    }
+
+    /**
+     * Returns the time (in milliseconds) the server spent in each phase of
+     * its startup.
+     * 
+     * @throws IOException
+     *             in case of trouble.
+     */
+    public synchronized Map<String, String> getStartupReport()
+            throws IOException {
+        sendCommand(Protocol.OPCODE_GET_STARTUP_REPORT);
+
+        return readMapReply();
+    }
+
+    private Map<String, String> readMapReply() throws IOException {
+        return parseMap(readReply());
+    }
+
+    private static Map<String, String> parseMap(String[] reply) {
+        Map<String, String> result = new LinkedHashMap<String, String>();
         // while there are _two_ string remaining
         for (int i = 0; i + 1 < reply.length; i += 2) {
             String key = reply[i];
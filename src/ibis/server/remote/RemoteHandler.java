@@ -3,17 +3,84 @@ package ibis.server.remote;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.log4j.Logger;
 
+import ibis.server.Event;
 import ibis.server.Server;
-
+import ibis.server.ServerProperties;
+import ibis.server.Snapshot;
+import ibis.server.StatisticsSamples;
+import ibis.util.TypedProperties;
+
+/**
+ * Handles commands for a server read from standard in. Commands are executed
+ * by a separate thread, so a command which takes too long can be answered
+ * with an error reply before its deadline. Replies are sent (in order) by yet
+ * another thread, so the handler keeps reading commands while commands are
+ * executing, and an end command is acted upon immediately.
+ */
 public class RemoteHandler implements Runnable {
 
+    /**
+     * A command of which the reply is not sent yet.
+     */
+    private static final class PendingCommand {
+        final String[] command;
+
+        final Future<String[]> future;
+
+        // time (in milliseconds) the command may take, or 0
+        final long timeout;
+
+        // time (in milliseconds since the epoch) at which the command is
+        // answered with an error, or 0
+        final long deadline;
+
+        // error replied instead of the reply of a command, or null
+        final String error;
+
+        PendingCommand(String[] command, Future<String[]> future,
+                long timeout, String error) {
+            this.command = command;
+            this.future = future;
+            this.timeout = timeout;
+            if (timeout > 0) {
+                deadline = System.currentTimeMillis() + timeout;
+            } else {
+                deadline = 0;
+            }
+            this.error = error;
+        }
+    }
+
+    // marks the end of the replies
+    private static final PendingCommand LAST = new PendingCommand(null, null,
+            0, null);
+
     private final Server server;
 
+    private final TypedProperties properties;
+
+    private final ExecutorService executor;
+
+    // commands of which the reply is not sent yet, in order
+    private final LinkedList<PendingCommand> pending = new LinkedList<PendingCommand>();
+
     BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
 
     private void sendReply(String... arguments) {
@@ -34,6 +101,30 @@ public class RemoteHandler implements Runnable {
         System.out.flush();
     }
 
+    private void sendError(String message) {
+        // an error reply is a single line
+        String line = Protocol.SERVER_ERROR
+                + message.replace('\r', ' ').replace('\n', ' ');
+
+        System.out.println(line);
+        System.out.flush();
+    }
+
+    private static String[] toReply(Map<String, String> map) {
+        ArrayList<String> reply = new ArrayList<String>();
+
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            reply.add(entry.getKey());
+            if (entry.getValue() == null) {
+                reply.add("null");
+            } else {
+                reply.add(entry.getValue());
+            }
+        }
+
+        return reply.toArray(new String[0]);
+    }
+
     private String[] readCommand() throws IOException {
         String line = in.readLine();
 
@@ -53,42 +144,87 @@ public class RemoteHandler implements Runnable {
     }
 
     public RemoteHandler(Server server) {
+        this(server, new Properties());
+    }
+
+    /**
+     * Create a handler for the given server, with deadlines for commands as
+     * specified in the given server properties.
+     */
+    public RemoteHandler(Server server, Properties properties) {
         this.server = server;
+
+        this.properties = ServerProperties.getHardcodedProperties();
+        this.properties.addProperties(properties);
+
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "remote command");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
 
-    private void handleGetLocalAddress() throws IOException {
-        sendReply(server.getLocalAddress());
+    /**
+     * Returns the deadline (in milliseconds) for the given command, or 0 if
+     * the command may take forever.
+     */
+    private long getDeadline(String[] command) {
+        String opcode = command[0];
+
+        long result = properties.getLongProperty(
+                ServerProperties.REMOTE_DEADLINE + "." + opcode,
+                properties.getLongProperty(ServerProperties.REMOTE_DEADLINE));
+
+        if (opcode.equals(Protocol.OPCODE_END) && command.length >= 2) {
+            // ending may take as long as the client allows it to take
+            try {
+                long timeout = Long.parseLong(command[1]);
+                if (timeout == 0) {
+                    return 0;
+                } else if (timeout > 0) {
+                    result += timeout;
+                }
+            } catch (NumberFormatException e) {
+                // reported by handleEnd
+            }
+        }
+
+        return result;
+    }
+
+    private String[] handleGetLocalAddress() throws IOException {
+        return new String[] { server.getLocalAddress() };
     }
 
-    private void handleAddHub(String[] command) throws IOException {
+    private String[] handleAddHub(String[] command) throws IOException {
         if (command.length < 2) {
-            System.out.println("hub not given");
-            return;
+            throw new IOException("hub not given");
         }
 
         String hub = command[1];
 
         server.addHubs(hub);
 
-        sendReply(new String[0]);
+        return new String[0];
     }
 
-    private void handleGetHubs() throws IOException {
-        String[] hubs = server.getHubs();
-
-        sendReply(hubs);
+    private String[] handleGetHubs() throws IOException {
+        return server.getHubs();
     }
 
-    private void handleGetServiceNames() throws IOException {
-        String[] services = server.getServiceNames();
+    private String[] handleGetHubLatencies() throws IOException {
+        return toReply(server.getHubLatencies());
+    }
 
-        sendReply(services);
+    private String[] handleGetServiceNames() throws IOException {
+        return server.getServiceNames();
     }
 
-    private void handleGetStatistics(String[] command) throws IOException {
+    private String[] handleGetStatistics(String[] command) throws IOException {
         if (command.length < 2) {
-            System.out.println("service name not given");
-            return;
+            throw new IOException("service name not given");
         }
 
         String serviceName = command[1];
@@ -96,28 +232,171 @@ public class RemoteHandler implements Runnable {
         Map<String, String> statistics = server.getStats(serviceName);
 
         if (statistics == null) {
-            System.out.println("Could not find service: " + serviceName);
-            return;
+            throw new IOException("Could not find service: " + serviceName);
+        }
+
+        return toReply(statistics);
+    }
+
+    private static long parseGeneration(String[] command, int index)
+            throws IOException {
+        if (command.length <= index) {
+            throw new IOException("generation not given");
+        }
+        try {
+            return Long.parseLong(command[index]);
+        } catch (NumberFormatException e) {
+            throw new IOException("could not parse generation: " + e);
+        }
+    }
+
+    /**
+     * Returns "NOT_MODIFIED" if the snapshot has the given generation, or the
+     * generation of the snapshot followed by the given reply otherwise.
+     */
+    private static String[] conditionalReply(Snapshot<?> snapshot,
+            long generation, String[] reply) {
+        if (snapshot.generation == generation) {
+            return new String[] { Protocol.REPLY_NOT_MODIFIED };
+        }
+
+        String[] result = new String[reply.length + 1];
+        result[0] = Long.toString(snapshot.generation);
+        System.arraycopy(reply, 0, result, 1, reply.length);
+        return result;
+    }
+
+    private String[] handleGetHubsIfModified(String[] command)
+            throws IOException {
+        long generation = parseGeneration(command, 1);
+
+        Snapshot<String[]> hubs = server.getHubsSnapshot();
+
+        return conditionalReply(hubs, generation, hubs.value);
+    }
+
+    private String[] handleGetServiceNamesIfModified(String[] command)
+            throws IOException {
+        long generation = parseGeneration(command, 1);
+
+        Snapshot<String[]> services = server.getServiceNamesSnapshot();
+
+        return conditionalReply(services, generation, services.value);
+    }
+
+    private String[] handleGetStatisticsIfModified(String[] command)
+            throws IOException {
+        if (command.length < 2) {
+            throw new IOException("service name not given");
+        }
+
+        String serviceName = command[1];
+        long generation = parseGeneration(command, 2);
+
+        Snapshot<Map<String, String>> statistics = server
+                .getStatsSnapshot(serviceName);
+
+        if (statistics == null) {
+            throw new IOException("Could not find service: " + serviceName);
+        }
+
+        return conditionalReply(statistics, generation,
+                toReply(statistics.value));
+    }
+
+    private String[] handleGetAllStatistics(String[] command)
+            throws IOException {
+        String[] serviceNames = null;
+        if (command.length >= 2 && !command[1].equals(Protocol.ANY)) {
+            serviceNames = command[1].split(",");
         }
 
+        String keyPrefix = null;
+        if (command.length >= 3 && !command[2].equals(Protocol.ANY)) {
+            keyPrefix = command[2];
+        }
+
+        Map<String, Map<String, String>> statistics = server.getAllStats(
+                serviceNames, keyPrefix);
+
+        // service, key, value for each statistic
         ArrayList<String> reply = new ArrayList<String>();
+        for (Map.Entry<String, Map<String, String>> service : statistics
+                .entrySet()) {
+            for (Map.Entry<String, String> entry : service.getValue()
+                    .entrySet()) {
+                reply.add(service.getKey());
+                reply.add(entry.getKey());
+                if (entry.getValue() == null) {
+                    reply.add("null");
+                } else {
+                    reply.add(entry.getValue());
+                }
+            }
+        }
+
+        return reply.toArray(new String[0]);
+    }
+
+    private String[] handleGetStatisticsHistory(String[] command)
+            throws IOException {
+        if (command.length < 4) {
+            throw new IOException("service name and time range not given");
+        }
+
+        String serviceName = command[1];
+
+        long from;
+        long to;
+        try {
+            from = Long.parseLong(command[2]);
+            to = Long.parseLong(command[3]);
+        } catch (NumberFormatException e) {
+            throw new IOException("could not parse time range: " + e);
+        }
+
+        Map<String, StatisticsSamples> history = server.getStatsHistory(
+                serviceName, from, to);
+
+        if (history == null) {
+            throw new IOException("No history for service: " + serviceName);
+        }
+
+        // key, number of samples, time and value of each sample
+        ArrayList<String> reply = new ArrayList<String>();
+        for (Map.Entry<String, StatisticsSamples> entry : history.entrySet()) {
+            StatisticsSamples samples = entry.getValue();
 
-        for (Map.Entry<String, String> entry : statistics.entrySet()) {
             reply.add(entry.getKey());
-            if (entry.getValue() == null) {
-                reply.add("null");
-            } else {
-                reply.add(entry.getValue());
+            reply.add(Integer.toString(samples.size()));
+            for (int i = 0; i < samples.size(); i++) {
+                reply.add(Long.toString(samples.times[i]));
+                reply.add(Double.toString(samples.values[i]));
             }
         }
 
-        sendReply(reply.toArray(new String[0]));
+        return reply.toArray(new String[0]);
+    }
+
+    private String[] handleGetEvents() throws IOException {
+        Event[] events = server.getEventBus().getRecentEvents();
+
+        // events may contain spaces, so encode them
+        String[] reply = new String[events.length];
+        for (int i = 0; i < events.length; i++) {
+            reply[i] = URLEncoder.encode(events[i].toString(), "UTF-8");
+        }
+
+        return reply;
+    }
+
+    private String[] handleGetStartupReport() throws IOException {
+        return toReply(server.getStartupReport());
     }
 
-    private void handleEnd(String[] command) throws IOException {
+    private String[] handleEnd(String[] command) throws IOException {
         if (command.length < 2) {
-            System.out.println("timeout not given");
-            return;
+            throw new IOException("timeout not given");
         }
 
         String timeoutString = command[1];
@@ -127,54 +406,208 @@ public class RemoteHandler implements Runnable {
 
             server.end(timeout);
 
-            sendReply(new String[0]);
+            return new String[0];
         } catch (NumberFormatException e) {
-            System.out.println("could not parse timeout");
             throw new IOException("error parsing long: " + e);
         }
     }
 
+    private String[] handle(String[] command) throws IOException {
+        String opcode = command[0];
+
+        if (opcode.equals(Protocol.OPCODE_GET_LOCAL_ADDRESS)) {
+            return handleGetLocalAddress();
+        } else if (opcode.equals(Protocol.OPCODE_ADD_HUB)) {
+            return handleAddHub(command);
+        } else if (opcode.equals(Protocol.OPCODE_GET_HUBS)) {
+            return handleGetHubs();
+        } else if (opcode.equals(Protocol.OPCODE_GET_HUB_LATENCIES)) {
+            return handleGetHubLatencies();
+        } else if (opcode.equals(Protocol.OPCODE_GET_SERVICE_NAMES)) {
+            return handleGetServiceNames();
+        } else if (opcode.equals(Protocol.OPCODE_GET_STATISTICS)) {
+            return handleGetStatistics(command);
+        } else if (opcode.equals(Protocol.OPCODE_GET_HUBS_IF_MODIFIED)) {
+            return handleGetHubsIfModified(command);
+        } else if (opcode
+                .equals(Protocol.OPCODE_GET_SERVICE_NAMES_IF_MODIFIED)) {
+            return handleGetServiceNamesIfModified(command);
+        } else if (opcode.equals(Protocol.OPCODE_GET_STATISTICS_IF_MODIFIED)) {
+            return handleGetStatisticsIfModified(command);
+        } else if (opcode.equals(Protocol.OPCODE_GET_ALL_STATISTICS)) {
+            return handleGetAllStatistics(command);
+        } else if (opcode.equals(Protocol.OPCODE_GET_STATISTICS_HISTORY)) {
+            return handleGetStatisticsHistory(command);
+        } else if (opcode.equals(Protocol.OPCODE_GET_EVENTS)) {
+            return handleGetEvents();
+        } else if (opcode.equals(Protocol.OPCODE_GET_STARTUP_REPORT)) {
+            return handleGetStartupReport();
+        } else if (opcode.equals(Protocol.OPCODE_END)) {
+            return handleEnd(command);
+        } else {
+            throw new IOException("unknown command: " + opcode);
+        }
+    }
+
+    private void addPending(PendingCommand command) {
+        synchronized (pending) {
+            pending.addLast(command);
+            pending.notifyAll();
+        }
+    }
+
+    private PendingCommand nextPending() throws InterruptedException {
+        synchronized (pending) {
+            while (pending.isEmpty()) {
+                pending.wait();
+            }
+            return pending.getFirst();
+        }
+    }
+
+    private void removePending() {
+        synchronized (pending) {
+            pending.removeFirst();
+        }
+    }
+
+    /**
+     * Cancels all commands still executing, they are answered with an error
+     * reply.
+     */
+    private void cancelPending() {
+        synchronized (pending) {
+            for (PendingCommand command : pending) {
+                if (command.future != null) {
+                    command.future.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Executes the given command in a separate thread. Its reply is sent by
+     * the replier.
+     */
+    private void execute(final String[] command) {
+        long timeout = getDeadline(command);
+
+        Future<String[]> future = executor.submit(new Callable<String[]>() {
+            public String[] call() throws IOException {
+                return handle(command);
+            }
+        });
+
+        addPending(new PendingCommand(command, future, timeout, null));
+    }
+
+    /**
+     * Sends the reply of the given command, or an error reply if it fails,
+     * is cancelled, or does not finish before its deadline.
+     */
+    private void sendReply(PendingCommand pendingCommand) {
+        if (pendingCommand.error != null) {
+            sendError(pendingCommand.error);
+            return;
+        }
+
+        String[] command = pendingCommand.command;
+        Future<String[]> future = pendingCommand.future;
+        try {
+            String[] reply;
+            if (pendingCommand.deadline > 0) {
+                reply = future.get(Math.max(0, pendingCommand.deadline
+                        - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } else {
+                reply = future.get();
+            }
+            sendReply(reply);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            System.err.println("command " + command[0]
+                    + " did not finish within " + pendingCommand.timeout
+                    + " ms");
+            sendError(command[0] + " did not finish within "
+                    + pendingCommand.timeout + " ms");
+        } catch (CancellationException e) {
+            sendError(command[0] + " cancelled, server is ending");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            System.err.println("error on handling remote request " + command[0]
+                    + ": " + cause);
+            sendError(String.valueOf(cause.getMessage()));
+        } catch (InterruptedException e) {
+            sendError("interrupted");
+        }
+    }
+
+    /**
+     * Sends the replies of all commands, in order, until the last.
+     */
+    private void sendReplies() {
+        while (true) {
+            PendingCommand next;
+            try {
+                next = nextPending();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (next == LAST) {
+                return;
+            }
+            sendReply(next);
+            removePending();
+        }
+    }
+
     public void run() {
         System.err.println("starting remote handler");
 
+        Thread replier = new Thread(new Runnable() {
+            public void run() {
+                sendReplies();
+            }
+        }, "remote replier");
+        replier.setDaemon(true);
+        replier.start();
+
         while (true) {
             try {
                 String[] command = readCommand();
 
                 if (command == null) {
                     System.err.println("input stream closed, stopping server");
+                    cancelPending();
                     server.end(-1);
-                    return;
+                    break;
                 }
 
-                if (command.length == 0) {
-                    System.out.println("command not given");
+                if (command.length == 0 || command[0].equals("")) {
+                    addPending(new PendingCommand(null, null, 0,
+                            "command not given"));
+                } else if (command[0].equals(Protocol.OPCODE_END)) {
+                    // commands still executing do not hold up ending
+                    cancelPending();
+                    execute(command);
+                    break;
                 } else {
-                    String opcode = command[0];
-
-                    if (opcode.equals(Protocol.OPCODE_GET_LOCAL_ADDRESS)) {
-                        handleGetLocalAddress();
-                    } else if (opcode.equals(Protocol.OPCODE_ADD_HUB)) {
-                        handleAddHub(command);
-                    } else if (opcode.equals(Protocol.OPCODE_GET_HUBS)) {
-                        handleGetHubs();
-                    } else if (opcode.equals(Protocol.OPCODE_GET_SERVICE_NAMES)) {
-                        handleGetServiceNames();
-                    } else if (opcode.equals(Protocol.OPCODE_GET_STATISTICS)) {
-                        handleGetStatistics(command);
-                    } else if (opcode.equals(Protocol.OPCODE_END)) {
-                        handleEnd(command);
-                        return;
-                    } else {
-                        System.err.println("unknown command: " + command[1]);
-                    }
+                    execute(command);
                 }
             } catch (Exception e) {
                 System.err
                         .println("error on handling remote request (ignoring)");
                 e.printStackTrace(System.err);
-                System.out.println("error: " + e.getMessage());
+                addPending(new PendingCommand(null, null, 0, String
+                        .valueOf(e.getMessage())));
             }
         }
+
+        // wait until all replies are sent
+        addPending(LAST);
+        try {
+            replier.join();
+        } catch (InterruptedException e) {
+            // IGNORE
+        }
     }
 }